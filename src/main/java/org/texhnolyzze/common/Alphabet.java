@@ -13,10 +13,21 @@ public class Alphabet implements Iterable<Character> {
     
     public static final Alphabet RUS = fromUTF16Range(1040, 1103);
     
-    private Map<Character, Integer> indexOf;
+//  Lookups of indexOf are pure array accesses: the ranges are looked up by c - from,
+//  the compact sets by the dense table over [from, from + span), the sparse sets
+//  by the two-level table of 256 pages, where the pages without chars share the empty one.
+    private static final int MAX_DENSE_SPAN = 1024;
+    private static final int[] EMPTY_PAGE = new int[256];
+    static {
+        Arrays.fill(EMPTY_PAGE, -1);
+    }
+    
+    private boolean isRange; // fromUTF16Range
+    private int[] dense;
+    private int[][] pages;
 
     private CharArray alphabet;
-    private int from;
+    private int from, span;
     
     private Alphabet() {}
 
@@ -29,10 +40,12 @@ public class Alphabet implements Iterable<Character> {
     }
 
     public int indexOf(char c) {
-        if (indexOf != null) 
-            return indexOf.getOrDefault(c, -1);
-        else 
-            return c - from < 0 ? -1 : c > from + alphabet.chars.length - 1 ? -1 : c - from;
+        if (pages != null)
+            return pages[c >>> 8][c & 0xFF];
+        int i = c - from;
+        if (i < 0 || i >= span)
+            return -1;
+        return dense == null ? i : dense[i];
     }
 
     public boolean contains(char c) {
@@ -49,7 +62,7 @@ public class Alphabet implements Iterable<Character> {
     @Override
     public int hashCode() {
         int hash = 7;
-        if (indexOf == null) {
+        if (isRange) {
             hash = 29 * hash + Integer.hashCode(from);
             hash = 29 * hash + Integer.hashCode(alphabet.chars.length);
         } else
@@ -63,13 +76,13 @@ public class Alphabet implements Iterable<Character> {
         if (obj == null) return false;
         if (getClass() != obj.getClass()) return false;
         final Alphabet other = (Alphabet) obj;
-        if (this.indexOf == null) {
-            if (other.indexOf != null)
+        if (this.isRange) {
+            if (!other.isRange)
                 return false;
             else
                 return this.from == other.from && this.alphabet.chars.length == other.alphabet.chars.length;
         } else {
-            if (other.indexOf == null)
+            if (other.isRange)
                 return false;
             else
                 return alphabet.equals(other.alphabet);
@@ -101,7 +114,9 @@ public class Alphabet implements Iterable<Character> {
         if (cached != null)
             return cached;
         Alphabet a = new Alphabet();
+        a.isRange = true;
         a.from = from;
+        a.span = to - from + 1;
         a.alphabet = new CharArray(new char[to - from + 1]);
         for (int i = from; i <= to; i++) 
             a.alphabet.chars[i - from] = (char) i;
@@ -150,9 +165,24 @@ public class Alphabet implements Iterable<Character> {
             return cached;
         Alphabet a = new Alphabet();
         a.alphabet = arr;
-        a.indexOf = new HashMap<>(alphabet.length);
-        for (int i = 0; i < alphabet.length; i++) 
-            a.indexOf.put(alphabet[i], i);
+        int span = alphabet.length == 0 ? 0 : alphabet[alphabet.length - 1] - alphabet[0] + 1;
+        if (span <= Math.max(MAX_DENSE_SPAN, 4 * alphabet.length)) {
+            a.from = alphabet.length == 0 ? 0 : alphabet[0];
+            a.span = span;
+            a.dense = new int[span];
+            Arrays.fill(a.dense, -1);
+            for (int i = 0; i < alphabet.length; i++) 
+                a.dense[alphabet[i] - a.from] = i;
+        } else {
+            a.pages = new int[256][];
+            Arrays.fill(a.pages, EMPTY_PAGE);
+            for (int i = 0; i < alphabet.length; i++) {
+                char c = alphabet[i];
+                if (a.pages[c >>> 8] == EMPTY_PAGE)
+                    a.pages[c >>> 8] = EMPTY_PAGE.clone();
+                a.pages[c >>> 8][c & 0xFF] = i;
+            }
+        }
         ALL.put(a.alphabet, a);
         return a;
     }
@@ -1,7 +1,14 @@
 package org.texhnolyzze.common;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.BiConsumer;
+import java.util.function.DoubleSupplier;
+import java.util.function.ToDoubleFunction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -13,333 +20,787 @@ public final class ArithmeticExpression {
     
 //  add some common functions
     static {
-        Function.newFunction("sqrt", vals -> Math.sqrt(vals[0]), 1);
-        Function.newFunction("sin", vals -> Math.sin(vals[0]), 1);
-        Function.newFunction("cos", vals -> Math.cos(vals[0]), 1);
-        Function.newFunction("tan", vals -> Math.tan(vals[0]), 1);
-        Function.newFunction("ln", vals -> Math.log(vals[0]), 1);
-        Function.newFunction("lg", vals -> Math.log10(vals[0]), 1);
-        Function.newFunction("log", vals -> MathUtils.log(vals[0], vals[1]), 2);
+        Function.newDoubleFunction("sqrt", vals -> Math.sqrt(vals[0]), 1, true);
+        Function.newDoubleFunction("sin", vals -> Math.sin(vals[0]), 1, true);
+        Function.newDoubleFunction("cos", vals -> Math.cos(vals[0]), 1, true);
+        Function.newDoubleFunction("tan", vals -> Math.tan(vals[0]), 1, true);
+        Function.newDoubleFunction("ln", vals -> Math.log(vals[0]), 1, true);
+        Function.newDoubleFunction("lg", vals -> Math.log10(vals[0]), 1, true);
+        Function.newDoubleFunction("log", vals -> MathUtils.log(vals[0], vals[1]), 2, true);
     }
     
+//  The parsed expression is immutable: variables are resolved to the indices of the bindings 
+//  at parse time, so eval(bindings) and compileBindings() may be used by many threads at once. 
+//  The legacy setVariableValue / eval() pair keeps its own bindings, so it's not thread-safe.
     private Node root;
-    private final Map<String, OperandNode> vars = new HashMap<>();
+    private int numSlots; // common subexpressions, evaluated once per evaluation
+    private ThreadLocal<Frame> frames; // scratch of the evaluations, shared with the copies
+    private final Map<String, VariableNode> vars;
+    private double[] values = new double[0];
+    private int functionsVersion;
+    
+    private ArithmeticExpression() {
+        this.vars = new LinkedHashMap<>();
+    }
+    
+//  shares the tree with the parsed one
+    private ArithmeticExpression(ArithmeticExpression parsed) {
+        this.root = parsed.root;
+        this.numSlots = parsed.numSlots;
+        this.frames = parsed.frames;
+        this.vars = parsed.vars;
+        this.values = parsed.values.clone();
+        this.functionsVersion = parsed.functionsVersion;
+    }
     
     public boolean contains(String var) {
         return vars.containsKey(var);
     }
     
-    public double getVariableValue(String var) {
-        OperandNode n = vars.get(var);
+    public int numVariables() {
+        return vars.size();
+    }
+    
+//  index of the variable in the bindings
+    public int variableIndex(String var) {
+        VariableNode n = vars.get(var);
         if (n != null) 
-            return n.val;
+            return n.index;
         else 
             throw new IllegalArgumentException("There is no variable named " + var + ".");
     }
     
+    public double getVariableValue(String var) {
+        return values[variableIndex(var)];
+    }
+    
     public void setVariableValue(String var, double val) {
-        OperandNode n = vars.get(var);
-        if (n != null) 
-            n.val = val;
-        else 
-            throw new IllegalArgumentException("There is no variable named " + var + ".");
+        values[variableIndex(var)] = val;
     }
     
     public void forEachVariable(BiConsumer<String, Double> c) {
-        for (Map.Entry<String, OperandNode> e : vars.entrySet())
-            c.accept(e.getKey(), e.getValue().val);
+        for (Map.Entry<String, VariableNode> e : vars.entrySet())
+            c.accept(e.getKey(), values[e.getValue().index]);
     } 
     
     public double eval() {
-        return eval(root);
+        return eval(values);
+    }
+    
+//  bindings[variableIndex(var)] is the value of var
+    public double eval(double[] bindings) {
+        if (bindings.length < vars.size())
+            throw new IllegalArgumentException("Expected " + vars.size() + " bindings, got " + bindings.length + ".");
+        Frame frame = frames.get().acquire();
+        try {
+            return eval(root, bindings, frame);
+        } finally {
+            frame.release();
+        }
     }
 
-    private double eval(Node n) {
-        switch (n.getClass().getSimpleName()) {
-            case "OperandNode":
-                return ((OperandNode) n).val;
-            case "OperatorNode":
-                OperatorNode op_node = (OperatorNode) n;
-                for (int i = 0; i < op_node.childs.length; i++) 
-                    op_node.temp_vals[i] = eval(op_node.childs[i]);
-                return op_node.operator.apply(op_node.temp_vals);
-            case "FunctionNode":
-                FunctionNode func_node = (FunctionNode) n;
-                for (int i = 0; i < func_node.childs.length; i++) 
-                    func_node.temp_vals[i] = eval(func_node.childs[i]);
-                return func_node.function.apply(func_node.temp_vals);
+    private static double eval(Node n, double[] bindings, Frame frame) {
+        if (n instanceof OperandNode)
+            return ((OperandNode) n).val;
+        if (n instanceof VariableNode)
+            return bindings[((VariableNode) n).index];
+        if (n instanceof StoreNode) {
+            StoreNode store = (StoreNode) n;
+            return frame.slots[store.slot] = eval(store.node, bindings, frame);
+        }
+        if (n instanceof LoadNode)
+            return frame.slots[((LoadNode) n).slot];
+        if (n instanceof OperatorNode) {
+            OperatorNode op_node = (OperatorNode) n;
+            double a = eval(op_node.childs[0], bindings, frame);
+            if (op_node.operator == Operator.UNARY_MINUS)
+                return -a;
+            return op_node.operator.apply(a, eval(op_node.childs[1], bindings, frame));
+        }
+        if (n instanceof FunctionNode) {
+            FunctionNode func_node = (FunctionNode) n;
+            double[] vals = frame.args[func_node.site];
+            for (int i = 0; i < vals.length; i++) 
+                vals[i] = eval(func_node.childs[i], bindings, frame);
+            return func_node.function.apply(vals);
         }
         return Double.NaN;
     }
     
+//  Scratch of an evaluation: the common subexpressions and the arguments of every call site, 
+//  so the evaluation allocates nothing. One per thread, a reentrant evaluation 
+//  (a function evaluating the same expression) takes a fresh one.
+    private static final class Frame {
+        
+        final double[] slots;
+        final double[][] args; // by the call site
+        private boolean busy;
+        
+        Frame(int numSlots, int[] numArgs) {
+            slots = new double[numSlots];
+            args = new double[numArgs.length][];
+            for (int i = 0; i < numArgs.length; i++) 
+                args[i] = new double[numArgs[i]];
+        }
+        
+        Frame acquire() {
+            if (busy) {
+                int[] numArgs = new int[args.length];
+                for (int i = 0; i < args.length; i++) 
+                    numArgs[i] = args[i].length;
+                return new Frame(slots.length, numArgs).acquire();
+            }
+            busy = true;
+            return this;
+        }
+        
+        void release() {
+            busy = false;
+        }
+        
+    }
+    
+    @FunctionalInterface
+    private interface Compiled {
+        double eval(double[] bindings, Frame frame);
+    }
+    
+//  Compiles the expression to the tree of closures with primitive double returns, specialized 
+//  by the operator and the number of function arguments, so the JIT can inline the whole 
+//  expression. Variables are read at the evaluation, so setVariableValue affects it.
+    public DoubleSupplier compile() {
+        Compiled c = compile(root);
+        ThreadLocal<Frame> frames = this.frames;
+        return () -> {
+            Frame frame = frames.get().acquire();
+            try {
+                return c.eval(values, frame);
+            } finally {
+                frame.release();
+            }
+        };
+    }
+    
+//  the same over the bindings like eval(bindings), may be shared between threads
+    public ToDoubleFunction<double[]> compileBindings() {
+        Compiled c = compile(root);
+        ThreadLocal<Frame> frames = this.frames;
+        int numVars = vars.size();
+        return bindings -> {
+            if (bindings.length < numVars)
+                throw new IllegalArgumentException("Expected " + numVars + " bindings, got " + bindings.length + ".");
+            Frame frame = frames.get().acquire();
+            try {
+                return c.eval(bindings, frame);
+            } finally {
+                frame.release();
+            }
+        };
+    }
+    
+    private static Compiled compile(Node n) {
+        if (n instanceof OperandNode) {
+            double val = ((OperandNode) n).val;
+            return (vars, frame) -> val;
+        }
+        if (n instanceof VariableNode) {
+            int index = ((VariableNode) n).index;
+            return (vars, frame) -> vars[index];
+        }
+        if (n instanceof StoreNode) {
+            int slot = ((StoreNode) n).slot;
+            Compiled node = compile(((StoreNode) n).node);
+            return (vars, frame) -> frame.slots[slot] = node.eval(vars, frame);
+        }
+        if (n instanceof LoadNode) {
+            int slot = ((LoadNode) n).slot;
+            return (vars, frame) -> frame.slots[slot];
+        }
+        if (n instanceof OperatorNode) {
+            OperatorNode op_node = (OperatorNode) n;
+            Compiled a = compile(op_node.childs[0]);
+            if (op_node.operator == Operator.UNARY_MINUS)
+                return (vars, frame) -> -a.eval(vars, frame);
+            Compiled b = compile(op_node.childs[1]);
+            switch (op_node.operator) {
+                case PLUS:     return (vars, frame) -> a.eval(vars, frame) + b.eval(vars, frame);
+                case MINUS:    return (vars, frame) -> a.eval(vars, frame) - b.eval(vars, frame);
+                case MULTIPLE: return (vars, frame) -> a.eval(vars, frame) * b.eval(vars, frame);
+                case DIVIDE:   return (vars, frame) -> a.eval(vars, frame) / b.eval(vars, frame);
+                case POWER:    return (vars, frame) -> Math.pow(a.eval(vars, frame), b.eval(vars, frame));
+                case MODULO:   return (vars, frame) -> a.eval(vars, frame) % b.eval(vars, frame);
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+        FunctionNode func_node = (FunctionNode) n;
+        ToDoubleFunction<double[]> f = func_node.function.f;
+        int site = func_node.site;
+        Compiled[] args = new Compiled[func_node.childs.length];
+        for (int i = 0; i < args.length; i++) 
+            args[i] = compile(func_node.childs[i]);
+        switch (args.length) {
+            case 0:
+                return (vars, frame) -> f.applyAsDouble(frame.args[site]);
+            case 1:
+                Compiled a = args[0];
+                return (vars, frame) -> {
+                    double[] vals = frame.args[site];
+                    vals[0] = a.eval(vars, frame);
+                    return f.applyAsDouble(vals);
+                };
+            case 2:
+                Compiled x = args[0], y = args[1];
+                return (vars, frame) -> {
+                    double[] vals = frame.args[site];
+                    vals[0] = x.eval(vars, frame);
+                    vals[1] = y.eval(vars, frame);
+                    return f.applyAsDouble(vals);
+                };
+            default:
+                return (vars, frame) -> {
+                    double[] vals = frame.args[site];
+                    for (int i = 0; i < vals.length; i++) 
+                        vals[i] = args[i].eval(vars, frame);
+                    return f.applyAsDouble(vals);
+                };
+        }
+    }
+    
+    private static final int BLOCK_SIZE = 1024;
+    
+//  Columnar evaluation: out[i] = expression of the variables bound to columns.get(var)[i] for i in [from, to). 
+//  Variables without the column keep their current value. The rows are evaluated by blocks, 
+//  every node in one tight loop over the block into its register, the registers are reused 
+//  between the siblings like in the stack machine.
+    public void eval(Map<String, double[]> columns, double[] out, int from, int to) {
+        new BatchEval(this, columns, out, from, to, false).compute();
+    }
+    
+//  the same with the rows split between the tasks of the pool
+    public void eval(Map<String, double[]> columns, double[] out, int from, int to, ForkJoinPool pool) {
+        pool.invoke(new BatchEval(this, columns, out, from, to, true));
+    }
+    
+    private static final class BatchEval extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private static final int MIN_ROWS_PER_TASK = 16 * BLOCK_SIZE;
+        
+        private final Node root;
+        private final int numSlots;
+        private final double[][] columns; // by the variable index, null for the scalars
+        private final double[] scalars;
+        private final double[] out;
+        private final int from, to;
+        private final boolean parallel; // the sequential eval may be called from a pool task too, it must not fork
+        
+        BatchEval(ArithmeticExpression ex, Map<String, double[]> columns, double[] out, int from, int to, boolean parallel) {
+            if (from < 0 || from > to || to > out.length)
+                throw new IndexOutOfBoundsException("[" + from + ", " + to + ") of " + out.length);
+            this.root = ex.root;
+            this.numSlots = ex.numSlots;
+            this.scalars = ex.values.clone();
+            this.out = out;
+            this.from = from;
+            this.to = to;
+            this.parallel = parallel;
+            this.columns = new double[ex.vars.size()][];
+            for (Map.Entry<String, double[]> e : columns.entrySet()) {
+                int index = ex.variableIndex(e.getKey());
+                if (e.getValue().length < to)
+                    throw new IllegalArgumentException("Column " + e.getKey() + " is shorter than " + to + ".");
+                this.columns[index] = e.getValue();
+            }
+        }
+        
+        private BatchEval(BatchEval parent, int from, int to) {
+            this.root = parent.root;
+            this.numSlots = parent.numSlots;
+            this.columns = parent.columns;
+            this.scalars = parent.scalars;
+            this.out = parent.out;
+            this.from = from;
+            this.to = to;
+            this.parallel = true;
+        }
+        
+        @Override
+        protected void compute() {
+            if (parallel && to - from > MIN_ROWS_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BatchEval(this, from, mid), new BatchEval(this, mid, to));
+                return;
+            }
+            double[][] regs = new double[registers(root)][BLOCK_SIZE];
+            double[][] slots = new double[numSlots][BLOCK_SIZE];
+            for (int i = from; i < to; i += BLOCK_SIZE) {
+                int len = Math.min(BLOCK_SIZE, to - i);
+                eval(root, regs, slots, 0, i, len);
+                System.arraycopy(regs[0], 0, out, i, len);
+            }
+        }
+        
+//      number of the registers to evaluate the subtree, when its children go to the successive ones
+        private static int registers(Node n) {
+            if (n instanceof StoreNode)
+                return registers(((StoreNode) n).node);
+            Node[] childs = childsOf(n);
+            int res = 1;
+            for (int i = 0; i < childs.length; i++) 
+                res = Math.max(res, i + registers(childs[i]));
+            return res;
+        }
+        
+//      evaluates the rows [row, row + len) of the subtree into regs[r]
+        private void eval(Node n, double[][] regs, double[][] slots, int r, int row, int len) {
+            double[] dst = regs[r];
+            if (n instanceof StoreNode) {
+                StoreNode store = (StoreNode) n;
+                eval(store.node, regs, slots, r, row, len);
+                System.arraycopy(dst, 0, slots[store.slot], 0, len);
+                return;
+            }
+            if (n instanceof LoadNode) {
+                System.arraycopy(slots[((LoadNode) n).slot], 0, dst, 0, len);
+                return;
+            }
+            if (n instanceof OperandNode) {
+                Arrays.fill(dst, 0, len, ((OperandNode) n).val);
+                return;
+            }
+            if (n instanceof VariableNode) {
+                int index = ((VariableNode) n).index;
+                if (columns[index] != null)
+                    System.arraycopy(columns[index], row, dst, 0, len);
+                else
+                    Arrays.fill(dst, 0, len, scalars[index]);
+                return;
+            }
+            if (n instanceof OperatorNode) {
+                OperatorNode op_node = (OperatorNode) n;
+                eval(op_node.childs[0], regs, slots, r, row, len);
+                if (op_node.operator == Operator.UNARY_MINUS) {
+                    for (int i = 0; i < len; i++) 
+                        dst[i] = -dst[i];
+                    return;
+                }
+                eval(op_node.childs[1], regs, slots, r + 1, row, len);
+                double[] b = regs[r + 1];
+                switch (op_node.operator) {
+                    case PLUS:
+                        for (int i = 0; i < len; i++) 
+                            dst[i] += b[i];
+                        break;
+                    case MINUS:
+                        for (int i = 0; i < len; i++) 
+                            dst[i] -= b[i];
+                        break;
+                    case MULTIPLE:
+                        for (int i = 0; i < len; i++) 
+                            dst[i] *= b[i];
+                        break;
+                    case DIVIDE:
+                        for (int i = 0; i < len; i++) 
+                            dst[i] /= b[i];
+                        break;
+                    case POWER:
+                        for (int i = 0; i < len; i++) 
+                            dst[i] = Math.pow(dst[i], b[i]);
+                        break;
+                    case MODULO:
+                        for (int i = 0; i < len; i++) 
+                            dst[i] %= b[i];
+                        break;
+                    default:
+                        throw new IllegalStateException();
+                }
+                return;
+            }
+            FunctionNode func_node = (FunctionNode) n;
+            int k = func_node.childs.length;
+            for (int j = 0; j < k; j++) 
+                eval(func_node.childs[j], regs, slots, r + j, row, len);
+            ToDoubleFunction<double[]> f = func_node.function.f;
+            double[] vals = new double[k];
+            for (int i = 0; i < len; i++) {
+                for (int j = 0; j < k; j++) 
+                    vals[j] = regs[r + j][i];
+                dst[i] = f.applyAsDouble(vals);
+            }
+        }
+        
+    }
+    
+    private static final int PARSE_CACHE_SIZE = 1024;
+    
+//  parsed expressions by their text, the ones parsed before the last change of the functions are stale
+    private static final Cache<String, ArithmeticExpression> PARSE_CACHE = CacheBuilder.newBuilder().maximumSize(PARSE_CACHE_SIZE).build();
+    
+//  The same text is parsed once while it stays in the cache, the result is shared 
+//  between the copies, every of them has its own variable values.
     public static ArithmeticExpression parse(String ex) {
+        if (ex == null)
+            throw new IllegalArgumentException("Can't parse arithmetic expression");
+        ArithmeticExpression parsed = PARSE_CACHE.getIfPresent(ex);
+        if (parsed == null || parsed.functionsVersion != Function.version) {
+            parsed = parseUncached(ex);
+            PARSE_CACHE.put(ex, parsed);
+        }
+        return new ArithmeticExpression(parsed);
+    }
+    
+    static ArithmeticExpression parseUncached(String ex) {
+        ArithmeticExpression dest = new ArithmeticExpression();
+        dest.functionsVersion = Function.version;
         try {
-            String[] tokens = toTokens(ex);
-            String[] postfix = toPostfix(tokens);
-            testPostfix(postfix);
-            return buildTree(postfix, new ArithmeticExpression());
+            dest.root = new Parser(ex, dest).parse();
         } catch (Exception e) {
-            throw new IllegalArgumentException("Can't parse arithmetic expression");
+            throw new IllegalArgumentException("Can't parse arithmetic expression", e);
         }
+        dest.values = new double[dest.vars.size()];
+        Arrays.fill(dest.values, Double.NaN);
+        return optimize(dest);
     }
     
     public static final Pattern NUM_PATTERN = Pattern.compile("[0-9]+(\\.[0-9]+)?");
     public static final Pattern VAR_PATTERN = Pattern.compile("[_$a-zA-Z][_$0-9a-zA-Z]*");
-
-    private static String[] toTokens(String ex) {
-        List<String> tokens = new ArrayList<>();
-        Matcher num_matcher = NUM_PATTERN.matcher(ex);
-        Matcher var_matcher = VAR_PATTERN.matcher(ex);
-        Matcher func_matcher = Function.FUNC_PATTERN.matcher(ex);
-        for (int i = 0; i < ex.length();) {
-            char c = ex.charAt(i);
-            switch (c) {
-                case ' ':
-                    i++;
-                    break;
-                case '0':
-                case '1':
-                case '2':
-                case '3':
-                case '4':
-                case '5':
-                case '6':
-                case '7':
-                case '8':
-                case '9':
-                    num_matcher.find(i);
-                    tokens.add("n:" + ex.substring(i, num_matcher.end()));
-                    i = num_matcher.end();
-                    break;
-                case '(':
-                case ')':
-                case ',':
-                    tokens.add(Character.toString(c));
-                    i++;
-                    break;
-                case '+':
-                case '-':
-                case '*':
-                case '/':
-                case '^':
-                case '%':
-                    boolean u_minus = c == '-' && (tokens.isEmpty() || tokens.get(tokens.size() - 1).charAt(0) == '(' || tokens.get(tokens.size() - 1).charAt(0) == 'o');
-                    if (u_minus) {
-                        if (!tokens.isEmpty() && tokens.get(tokens.size() - 1).equals("o:u-"))
-                            throw new RuntimeException();
-                        tokens.add("o:u-");
-                    } else 
-                        tokens.add("o:" + c);
-                    i++;
-                    break;
-                default:
-                    if (var_matcher.find(i) && var_matcher.start() == i) {
-                        String varName = ex.substring(i, var_matcher.end());
-                        if (varName.matches(Function.FUNC_PATTERN.pattern()))
-                            tokens.add("f:" + varName);
-                        else
-                            tokens.add("v:" + varName);
-                        i = var_matcher.end();
-                    } else {
-                        if (func_matcher.find(i) && func_matcher.start() == i) {
-                            String funcName = ex.substring(i, func_matcher.end());
-                            tokens.add("f:" + funcName);
-                            i = func_matcher.end();
-                        } else
-                            throw new RuntimeException();
-                    }
-                    break;
+    
+//  Recursive descent parser reading the chars of the expression right away, without the tokens: 
+//  
+//  expression = term { ("+" | "-") term }
+//  term       = power { ("*" | "/" | "%") power }
+//  power      = unary [ "^" power ]
+//  unary      = [ "-" ] primary
+//  primary    = number | variable | function "(" [ expression { "," expression } ] ")" | "(" expression ")"
+//  
+//  Numbers and variables are the ones of NUM_PATTERN and VAR_PATTERN, the names of the 
+//  registered functions aren't variables. The unary minus binds tighter than ^, so -x^2 is (-x)^2, 
+//  and ^ is right associative.
+    private static final class Parser {
+        
+        private final String ex;
+        private final ArithmeticExpression dest;
+        private int pos;
+        
+        Parser(String ex, ArithmeticExpression dest) {
+            this.ex = ex;
+            this.dest = dest;
+        }
+        
+        Node parse() {
+            Node n = expression();
+            if (peek() != -1)
+                throw error();
+            return n;
+        }
+        
+        private Node expression() {
+            Node n = term();
+            for (int c = peek(); c == '+' || c == '-'; c = peek()) {
+                pos++;
+                n = operator(c == '+' ? Operator.PLUS : Operator.MINUS, n, term());
             }
+            return n;
         }
-        return tokens.toArray(new String[tokens.size()]);
-    }
-    
-//  the implementation of the sorting station algorithm 
-//  whose idea belongs to Edsger Dijkstra
-    private static String[] toPostfix(String[] tokens) {
-        Stack<String> s = new Stack<>();
-        List<String> postfix = new ArrayList<>();        
-        for (String token : tokens) {
-            char id = token.charAt(0);            
-            switch (id) {
-                case 'n':
-                case 'v':
-                    postfix.add(token);
-                    break;
-                case 'f':
-                case '(':
-                    s.push(token);
-                    break;
-                case ',':
-                    while (!s.peek().equals("(")) 
-                        postfix.add(s.pop());
-                    break;
-                case ')':
-                    while (!s.peek().equals("(")) 
-                        postfix.add(s.pop());
-                    s.pop();
-                    if (!s.isEmpty() && s.peek().charAt(0) == 'f')
-                        postfix.add(s.pop());
-                    break;
-                case 'o':
-                    int p1 = priorityOf(token);
-                    boolean left = isLeft(token);
-                    while (!s.isEmpty() && s.peek().charAt(0) != '(') {
-                        int p2 = priorityOf(s.peek());
-                        if ((left && p1 <= p2) || (!left && p1 < p2))
-                            postfix.add(s.pop());
-                        else 
-                            break;
-                    }
-                    s.push(token);
-                    break;
+        
+        private Node term() {
+            Node n = power();
+            for (int c = peek(); c == '*' || c == '/' || c == '%'; c = peek()) {
+                pos++;
+                n = operator(c == '*' ? Operator.MULTIPLE : c == '/' ? Operator.DIVIDE : Operator.MODULO, n, power());
             }
+            return n;
         }
-        while (!s.isEmpty()) {
-            String token = s.pop();
-            if (token.charAt(0) == '(' || token.charAt(0) == ')') 
-                throw new RuntimeException();
-            postfix.add(token);
-        }
-        return postfix.toArray(new String[postfix.size()]);
-    }
-    
-    private static int priorityOf(String opToken) {
-        switch (opToken) {
-            case ")":
-                return 0;
-            case "o:+":
-            case "o:-":
-                return 1;
-            case "o:*":
-            case "o:/":
-            case "o:%":
-                return 2;
-            case "o:^":
-                return 3;
-            case "o:u-":
-                return 4;
-            default:
-                throw new RuntimeException();
+        
+        private Node power() {
+            Node n = unary();
+            if (peek() != '^')
+                return n;
+            pos++;
+            return operator(Operator.POWER, n, power());
+        }
+        
+        private Node unary() {
+            if (peek() != '-')
+                return primary();
+            pos++;
+            if (peek() == '-')
+                throw error();
+            OperatorNode n = new OperatorNode(Operator.UNARY_MINUS);
+            n.childs[0] = primary();
+            return n;
+        }
+        
+        private Node primary() {
+            int c = peek();
+            if (c == '(') {
+                pos++;
+                Node n = expression();
+                expect(')');
+                return n;
+            }
+            if (isDigit(c))
+                return number();
+            if (isNameStart(c))
+                return name();
+            throw error();
         }
+        
+        private Node number() {
+            int start = pos;
+            skipDigits();
+            if (pos + 1 < ex.length() && ex.charAt(pos) == '.' && isDigit(ex.charAt(pos + 1))) {
+                pos++;
+                skipDigits();
+            }
+            return new OperandNode(Double.parseDouble(ex.substring(start, pos)));
+        }
+        
+        private Node name() {
+            int start = pos;
+            while (pos < ex.length() && (isNameStart(ex.charAt(pos)) || isDigit(ex.charAt(pos))))
+                pos++;
+            String name = ex.substring(start, pos);
+            Function function = Function.getByName(name);
+            if (function == null)
+                return dest.vars.computeIfAbsent(name, k -> new VariableNode(dest.vars.size()));
+            FunctionNode n = new FunctionNode(function);
+            expect('(');
+            for (int i = 0; i < n.childs.length; i++) {
+                if (i != 0)
+                    expect(',');
+                n.childs[i] = expression();
+            }
+            expect(')');
+            return n;
+        }
+        
+        private static Node operator(Operator operator, Node a, Node b) {
+            OperatorNode n = new OperatorNode(operator);
+            n.childs[0] = a;
+            n.childs[1] = b;
+            return n;
+        }
+        
+//      the next char after the spaces, -1 at the end
+        private int peek() {
+            while (pos < ex.length() && ex.charAt(pos) == ' ')
+                pos++;
+            return pos < ex.length() ? ex.charAt(pos) : -1;
+        }
+        
+        private void expect(char c) {
+            if (peek() != c)
+                throw error();
+            pos++;
+        }
+        
+        private void skipDigits() {
+            while (pos < ex.length() && isDigit(ex.charAt(pos)))
+                pos++;
+        }
+        
+        private static boolean isDigit(int c) {
+            return c >= '0' && c <= '9';
+        }
+        
+        private static boolean isNameStart(int c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == '$';
+        }
+        
+        private IllegalArgumentException error() {
+            return new IllegalArgumentException(pos < ex.length() ? "Unexpected '" + ex.charAt(pos) + "' at " + pos + "." : "Unexpected end.");
+        }
+        
     }
     
-    private static boolean isLeft(String opToken) {
-        switch (opToken) {
-            case "o:^":
-            case "o:u-":
-                return false;
-            default:
-                return true;
-        }
-    }
-    
-//  check that this is correct reverse polish notation
-    private static void testPostfix(String[] postfix) {
-        int numArgs;
-        int stackSize = 0;
-        for (String token : postfix) {
-            char id = token.charAt(0);
-            switch (id) {
-                case 'n':
-                case 'v':
-                    stackSize++;
-                    break;
-                case 'o':
-                    numArgs = Operator.getByOperatorToken(token).numArgs;
-                    stackSize -= (numArgs - 1);
-                    break;
-                case 'f':
-                    numArgs = Function.getByFunctionToken(token).numArgs;
-                    stackSize -= (numArgs - 1);
-                    break;
-            }
+//  Folds the subtrees of the constants and the pure functions, eliminates the identities 
+//  exact in IEEE-754 (x + -0.0, x - 0, x * 1, x / 1, x ^ 1, - - x) and evaluates the common subexpressions once: 
+//  the equal subtrees are merged, the first of them in the evaluation order stores its value 
+//  to the slot and the rest load it.
+    private static ArithmeticExpression optimize(ArithmeticExpression ex) {
+        Map<List<Object>, Node> canonical = new HashMap<>();
+        Node root = fold(ex.root, canonical);
+        Map<Node, Integer> uses = new IdentityHashMap<>();
+        countUses(root, uses);
+        Map<Node, Integer> slotOf = new IdentityHashMap<>();
+        ex.root = lift(root, uses, slotOf);
+        ex.numSlots = slotOf.size();
+        List<Integer> sites = new ArrayList<>();
+        numberCallSites(ex.root, sites);
+        int numSlots = ex.numSlots;
+        int[] numArgs = sites.stream().mapToInt(Integer::intValue).toArray();
+        ex.frames = ThreadLocal.withInitial(() -> new Frame(numSlots, numArgs));
+        return ex;
+    }
+    
+//  every function node is reached once after the lifting, so it gets its own arguments array
+    private static void numberCallSites(Node n, List<Integer> sites) {
+        if (n instanceof StoreNode) {
+            numberCallSites(((StoreNode) n).node, sites);
+            return;
         }
-        if (stackSize != 1)
-            throw new RuntimeException();
-    }
-    
-    private static ArithmeticExpression buildTree(String[] postfix, ArithmeticExpression dest) {
-        dest.root = buildTree(postfix, postfix.length - 1, dest).x();
-        return dest;
-    }
-    
-    private static Pair<Node, Integer> buildTree(String[] postfix, int i, ArithmeticExpression dest) {
-        Node node;
-        int subtreeEndIndex = i;
-        String token = postfix[i];
-        char id = token.charAt(0);
-        switch (id) {
-            case 'n':
-                node = new OperandNode(Double.parseDouble(token.substring(2)));
-                break;
-            case 'v':
-                String varName = token.substring(2);
-                node = dest.vars.get(varName);
-                if (node == null) {
-                    dest.vars.put(varName, new OperandNode(Double.NaN));
-                    node = dest.vars.get(varName);
-                }
-                break;
-            case 'o':
-                Operator operator = Operator.getByOperatorToken(token);
-                OperatorNode operatorNode = new OperatorNode(operator);
-                node = operatorNode;
-                for (int j = 0; j < operator.numArgs; j++) {
-                    Pair<Node, Integer> next = buildTree(postfix, subtreeEndIndex - 1, dest);
-                    operatorNode.childs[operator.numArgs - j - 1] = next.x();
-                    subtreeEndIndex = next.y();
-                }
-                break;
-            case 'f':
-                Function function = Function.getByFunctionToken(token);
-                FunctionNode functionNode = new FunctionNode(function);
-                node = functionNode;
-                for (int j = 0; j < function.numArgs; j++) {
-                    Pair<Node, Integer> next = buildTree(postfix, subtreeEndIndex - 1, dest);
-                    functionNode.childs[function.numArgs - j - 1] = next.x();
-                    subtreeEndIndex = next.y();
-                }
-                break;
+        if (n instanceof FunctionNode) {
+            FunctionNode func_node = (FunctionNode) n;
+            func_node.site = sites.size();
+            sites.add(func_node.childs.length);
+        }
+        for (Node child : childsOf(n)) 
+            numberCallSites(child, sites);
+    }
+    
+    private static Node fold(Node n, Map<List<Object>, Node> canonical) {
+        if (isConstant(n))
+            return constant(((OperandNode) n).val, canonical);
+        if (!(n instanceof OperatorNode || n instanceof FunctionNode))
+            return n;
+        Node[] childs = childsOf(n);
+        boolean constant = true;
+        for (int i = 0; i < childs.length; i++) {
+            childs[i] = fold(childs[i], canonical);
+            constant &= isConstant(childs[i]);
+        }
+        if (n instanceof OperatorNode) {
+            OperatorNode op_node = (OperatorNode) n;
+            if (constant)
+                return constant(op_node.operator.apply(constants(childs)), canonical);
+            Node identity = identity(op_node);
+            if (identity != null)
+                return identity;
+        } else {
+            FunctionNode func_node = (FunctionNode) n;
+            if (!func_node.function.pure)
+                return n;
+            if (constant)
+                return constant(func_node.function.apply(constants(childs)), canonical);
+        }
+        List<Object> key = new ArrayList<>(childs.length + 1);
+        key.add(n instanceof OperatorNode ? ((OperatorNode) n).operator : ((FunctionNode) n).function);
+        key.addAll(Arrays.asList(childs)); // children are canonical already, so compared by identity
+        return canonical.computeIfAbsent(key, k -> n);
+    }
+    
+    private static Node identity(OperatorNode n) {
+        Node a = n.childs[0], b = n.childs.length > 1 ? n.childs[1] : null;
+        switch (n.operator) {
+            case UNARY_MINUS:
+                if (a instanceof OperatorNode && ((OperatorNode) a).operator == Operator.UNARY_MINUS)
+                    return ((OperatorNode) a).childs[0];
+                return null;
+//          x + 0 isn't x for x = -0.0, while x + -0.0 and x - 0 are
+            case PLUS:
+                return isConstant(b, -0.0) ? a : isConstant(a, -0.0) ? b : null;
+            case MINUS:
+                return isConstant(b, 0.0) ? a : null;
+            case MULTIPLE:
+                return isConstant(b, 1) ? a : isConstant(a, 1) ? b : null;
+            case DIVIDE:
+            case POWER:
+                return isConstant(b, 1) ? a : null;
             default:
-                throw new RuntimeException();
+                return null;
         }
-        return Pair.of(node, subtreeEndIndex);
+    }
+    
+    private static boolean isConstant(Node n) {
+        return n instanceof OperandNode;
+    }
+    
+//  the zeros are told apart by their sign
+    private static boolean isConstant(Node n, double val) {
+        return isConstant(n) && Double.compare(((OperandNode) n).val, val) == 0;
+    }
+    
+    private static double[] constants(Node[] childs) {
+        double[] vals = new double[childs.length];
+        for (int i = 0; i < childs.length; i++) 
+            vals[i] = ((OperandNode) childs[i]).val;
+        return vals;
+    }
+    
+    private static Node constant(double val, Map<List<Object>, Node> canonical) {
+        return canonical.computeIfAbsent(List.of(val), k -> new OperandNode(val));
+    }
+    
+    private static void countUses(Node n, Map<Node, Integer> uses) {
+        if (uses.merge(n, 1, Integer::sum) > 1)
+            return;
+        for (Node child : childsOf(n)) 
+            countUses(child, uses);
+    }
+    
+    private static Node lift(Node n, Map<Node, Integer> uses, Map<Node, Integer> slotOf) {
+        Node[] childs = childsOf(n);
+        if (childs.length == 0)
+            return n;
+        Integer slot = slotOf.get(n);
+        if (slot != null)
+            return new LoadNode(slot);
+        boolean shared = uses.get(n) > 1;
+        if (shared)
+            slotOf.put(n, slot = slotOf.size());
+        for (int i = 0; i < childs.length; i++) 
+            childs[i] = lift(childs[i], uses, slotOf);
+        return shared ? new StoreNode(slot, n) : n;
+    }
+    
+    private static Node[] childsOf(Node n) {
+        if (n instanceof OperatorNode)
+            return ((OperatorNode) n).childs;
+        if (n instanceof FunctionNode)
+            return ((FunctionNode) n).childs;
+        return new Node[0];
     }
     
     private interface Node {}
     
+    private static class StoreNode implements Node {
+        final int slot;
+        final Node node;
+        StoreNode(int slot, Node node) {
+            this.slot = slot;
+            this.node = node;
+        }
+    }
+    
+    private static class LoadNode implements Node {
+        final int slot;
+        LoadNode(int slot) {this.slot = slot;}
+    }
+    
     private static class OperandNode implements Node {
-        double val;
+        final double val;
         OperandNode(double val) {this.val = val;}
     }
     
+    private static class VariableNode implements Node {
+        final int index; // in the bindings
+        VariableNode(int index) {this.index = index;}
+    }
+    
     private static class OperatorNode implements Node {
         
-        final double[] temp_vals;
-        
         final Operator operator;
         final Node[] childs;
         
         OperatorNode(Operator operator) {
             this.operator = operator;
             childs = new Node[operator.numArgs];
-            temp_vals = new double[operator.numArgs];
         }
         
     }
     
     private static class FunctionNode implements Node {
         
-        final double[] temp_vals;
-        
         final Function function;
         final Node[] childs;
+        int site; // index of the arguments array in the frame
         
         FunctionNode(Function function) {
             this.function = function;
             childs = new Node[function.numArgs];
-            this.temp_vals = new double[function.numArgs];
         }
         
     }
@@ -355,28 +816,27 @@ public final class ArithmeticExpression {
         MODULO((args) -> {return args[0] % args[1];}, 2);
         
         final int numArgs;
-        final java.util.function.Function<double[], Double> f;
+        final ToDoubleFunction<double[]> f;
         
-        Operator(java.util.function.Function<double[], Double> f, int numArgs) {
+        Operator(ToDoubleFunction<double[]> f, int numArgs) {
             this.f = f;
             this.numArgs = numArgs;
         }
         
         double apply(double[] vals) {
-            return f.apply(vals);
-        }
-        
-        static Operator getByOperatorToken(String opToken) {
-            switch (opToken) {
-                case "o:u-": return UNARY_MINUS;
-                case "o:+":  return PLUS;
-                case "o:-":  return MINUS;
-                case "o:*":  return MULTIPLE;
-                case "o:/":  return DIVIDE;
-                case "o:^":  return POWER;
-                case "o:%":  return MODULO;
+            return f.applyAsDouble(vals);
+        }
+        
+        double apply(double a, double b) {
+            switch (this) {
+                case PLUS:     return a + b;
+                case MINUS:    return a - b;
+                case MULTIPLE: return a * b;
+                case DIVIDE:   return a / b;
+                case POWER:    return Math.pow(a, b);
+                case MODULO:   return a % b;
                 default:
-                    throw new RuntimeException();
+                    throw new IllegalStateException();
             }
         }
         
@@ -384,25 +844,33 @@ public final class ArithmeticExpression {
     
     public static class Function {
         
-        private static Pattern FUNC_PATTERN = Pattern.compile("");
         public static Pattern ALLOWABLE_FUNC_NAME = Pattern.compile("[a-zA-Z]+[a-zA-Z0-9]*");
         
-        private static final Map<String, Function> ALL = new HashMap<>();
+        private static final Map<String, Function> ALL = new ConcurrentHashMap<>();
+        
+        static volatile int version; // of the registry, changed by every new or removed function
         
         private final int numArgs;
-        private final java.util.function.Function<double[], Double> f;
+        private final ToDoubleFunction<double[]> f;
+        private final boolean pure; // same result for the same arguments and no side effects, so may be folded
         
-        private Function(java.util.function.Function<double[], Double> f, int numArgs) {
+        private Function(ToDoubleFunction<double[]> f, int numArgs, boolean pure) {
             this.f = f;
             this.numArgs = numArgs;
+            this.pure = pure;
         }
         
         public int numArgs() {
             return numArgs;
         }
         
+        public boolean isPure() {
+            return pure;
+        }
+        
+//      the expressions reuse the arguments array between the calls, so f must not keep it
         public double apply(double[] vals) {
-            return f.apply(vals);
+            return f.applyAsDouble(vals);
         }
         
         public static Iterable<Map.Entry<String, Function>> getAllFunctions() {
@@ -413,36 +881,28 @@ public final class ArithmeticExpression {
             return ALL.get(name);
         }
         
-        static Function getByFunctionToken(String funcToken) {
-            return ALL.get(funcToken.substring(2));
+        public static void newFunction(String name, java.util.function.Function<double[], Double> f, int numArgs) {
+            newDoubleFunction(name, vals -> f.apply(vals), numArgs);
         }
         
-        public static void newFunction(String name, java.util.function.Function<double[], Double> f, int numArgs) {
+//      the same without boxing of the result
+        public static void newDoubleFunction(String name, ToDoubleFunction<double[]> f, int numArgs) {
+            newDoubleFunction(name, f, numArgs, false);
+        }
+        
+        public static synchronized void newDoubleFunction(String name, ToDoubleFunction<double[]> f, int numArgs, boolean pure) {
             if (ALL.containsKey(name))
                 throw new IllegalArgumentException("Function with name " + name + " already exists.");
             Matcher m = ALLOWABLE_FUNC_NAME.matcher(name);
             if (!m.find() || m.start() != 0 || m.end() != name.length())
                 throw new IllegalArgumentException("Illegal function name.");
-            ALL.put(name, new Function(f, numArgs));
-            String prev_pattern = FUNC_PATTERN.pattern();
-            FUNC_PATTERN = Pattern.compile(name + (prev_pattern.isEmpty() ? "" : "|") + prev_pattern);
-        }
-        
-        public static void removeFunction(String name) {
-            if (ALL.containsKey(name)) {
-                ALL.remove(name);
-                String[] prev_pattern = FUNC_PATTERN.pattern().split("\\|");
-                StringBuilder sb = new StringBuilder();
-                for (int i = 0; i < prev_pattern.length; i++) {
-                    String func_name = prev_pattern[i];
-                    if (func_name.equals(name)) 
-                        continue;
-                    sb.append(func_name);
-                    if (i != prev_pattern.length - 1)
-                        sb.append("|");
-                }
-                FUNC_PATTERN = Pattern.compile(sb.toString());
-            }
+            ALL.put(name, new Function(f, numArgs, pure));
+            version++;
+        }
+        
+        public static synchronized void removeFunction(String name) {
+            if (ALL.remove(name) != null) 
+                version++;
         }
         
     }
@@ -0,0 +1,159 @@
+package org.texhnolyzze.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.texhnolyzze.common.StringUtils.CharCostModel;
+import org.texhnolyzze.common.StringUtils.PeqTable;
+
+/**
+ * Burkhard-Keller tree for the fuzzy dictionary lookup: all the words within the distance k
+ * of the query are found without the full scan. Children of a node are keyed by their distance
+ * to it, so by the triangle inequality only the children keyed in [d - k, d + k] are visited,
+ * where d is the distance of the query to the node.
+ * The costs must form a metric: insert(c) == remove(c), symmetric substitute and
+ * substitute(c, c) == 0, UNIT costs do.
+ *
+ * @author Texhnolyze
+ */
+public class BKTree {
+
+    @FunctionalInterface
+    public interface WordConsumer {
+        void accept(String word, double distance);
+    }
+
+    private static final class Node {
+
+        final String word;
+
+        int numChildren;
+        double[] keys; // sorted
+        Node[] children;
+
+        Node(String word) {
+            this.word = word;
+        }
+
+        double maxKey() {
+            return numChildren == 0 ? -1 : keys[numChildren - 1];
+        }
+
+//      index of the first child keyed not less than the key
+        int lowerBound(double key) {
+            int lo = 0, hi = numChildren;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] < key)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+
+        void addChild(int idx, double key, Node child) {
+            if (keys == null) {
+                keys = new double[2];
+                children = new Node[2];
+            } else if (numChildren == keys.length) {
+                keys = Arrays.copyOf(keys, numChildren * 2);
+                children = Arrays.copyOf(children, numChildren * 2);
+            }
+            System.arraycopy(keys, idx, keys, idx + 1, numChildren - idx);
+            System.arraycopy(children, idx, children, idx + 1, numChildren - idx);
+            keys[idx] = key;
+            children[idx] = child;
+            numChildren++;
+        }
+
+    }
+
+    private final CharCostModel costs;
+
+    private Node root;
+    private int size;
+
+    public BKTree() {
+        this(CharCostModel.UNIT);
+    }
+
+    public BKTree(CharCostModel costs) {
+        this.costs = costs;
+    }
+
+    public CharCostModel getCosts() {return costs;}
+    public int size() {return size;}
+    public boolean isEmpty() {return size == 0;}
+
+    public boolean add(String word) {
+        if (root == null) {
+            root = new Node(word);
+            size++;
+            return true;
+        }
+        PeqTable peq = costs == CharCostModel.UNIT ? new PeqTable(word) : null;
+        Node node = root;
+        while (true) {
+            double d = peq != null ? StringUtils.getLevensteinDistance(peq, node.word) : StringUtils.getLevensteinDistance(word, node.word, costs);
+            if (d == 0 && word.equals(node.word))
+                return false;
+            int idx = node.lowerBound(d);
+            if (idx < node.numChildren && node.keys[idx] == d)
+                node = node.children[idx];
+            else {
+                node.addChild(idx, d, new Node(word));
+                size++;
+                return true;
+            }
+        }
+    }
+
+    public void addAll(Iterable<String> words) {
+        for (String word : words)
+            add(word);
+    }
+
+    public List<String> search(String query, double k) {
+        List<String> res = new ArrayList<>();
+        search(query, k, (word, distance) -> res.add(word));
+        return res;
+    }
+
+    public void search(String query, double k, WordConsumer consumer) {
+        if (root == null || k < 0)
+            return;
+//      unit costs are computed exactly by the bit-parallel algorithm over the table of the query
+        PeqTable peq = costs == CharCostModel.UNIT ? new PeqTable(query) : null;
+        Stack<Node> stack = new Stack<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            double d;
+            if (peq != null)
+                d = StringUtils.getLevensteinDistance(peq, node.word);
+            else {
+//              the exact distance is needed only as far as some child may be in range
+                double bound = Math.max(k, node.maxKey() + k);
+                d = StringUtils.getLevensteinDistance(query, node.word, costs, bound);
+            }
+            if (d <= k)
+                consumer.accept(node.word, d);
+            if (d == Double.POSITIVE_INFINITY)
+                continue;
+            for (int i = node.lowerBound(d - k); i < node.numChildren && node.keys[i] <= d + k; i++)
+                stack.push(node.children[i]);
+        }
+    }
+
+    public static BKTree build(Iterable<String> words) {
+        return build(words, CharCostModel.UNIT);
+    }
+
+    public static BKTree build(Iterable<String> words, CharCostModel costs) {
+        BKTree tree = new BKTree(costs);
+        tree.addAll(words);
+        return tree;
+    }
+
+}
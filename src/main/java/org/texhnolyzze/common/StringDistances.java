@@ -0,0 +1,215 @@
+package org.texhnolyzze.common;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.texhnolyzze.common.StringUtils.CharCostModel;
+import org.texhnolyzze.common.StringUtils.PeqTable;
+
+import static org.texhnolyzze.common.MathUtils.to2DArrayHash;
+
+/**
+ * Batch Levenshtein distances between two lists of strings: the full distance matrix
+ * or the k nearest columns of every row. Rows are split between the tasks of the ForkJoinPool,
+ * every task reuses its own DP rows. Pairs whose length difference alone costs more than
+ * the distance of interest (|n - m| * costs.minIndelCost()) are pruned before any DP.
+ *
+ * @author Texhnolyze
+ */
+public final class StringDistances {
+
+    private StringDistances() {}
+
+    private static final int DEFAULT_THRESHOLD = 16; // rows per task
+
+    @FunctionalInterface
+    private interface RowJob {
+        void compute(int row, double[] prev, double[] curr);
+    }
+
+    private static final class RowsTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RowJob job;
+        private final int from, to;
+        private final int rowLength;
+
+        RowsTask(RowJob job, int from, int to, int rowLength) {
+            this.job = job;
+            this.from = from;
+            this.to = to;
+            this.rowLength = rowLength;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= DEFAULT_THRESHOLD) {
+                double[] prev = new double[rowLength];
+                double[] curr = new double[rowLength];
+                for (int row = from; row < to; row++)
+                    job.compute(row, prev, curr);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RowsTask(job, from, mid, rowLength), new RowsTask(job, mid, to, rowLength));
+            }
+        }
+
+    }
+
+//  Unit costs are computed by the bit-parallel algorithm over the table of the row string, 
+//  built once per row, other costs by the DP over the rows of the task.
+    private static double distance(String s1, String s2, PeqTable peq, CharCostModel costs, double maxDistance, double[] prev, double[] curr) {
+        if (peq != null) {
+            int d = StringUtils.getLevensteinDistance(peq, s2);
+            return d <= maxDistance ? d : Double.POSITIVE_INFINITY;
+        }
+        return StringUtils.getLevensteinDistance(s1, s2, costs, maxDistance, prev, curr);
+    }
+    
+    private static PeqTable peqTable(String row, CharCostModel costs) {
+        return costs == CharCostModel.UNIT ? new PeqTable(row) : null;
+    }
+
+    private static int maxLength(String[] strings) {
+        int max = 0;
+        for (String s : strings)
+            max = Math.max(max, s.length());
+        return max;
+    }
+
+    public static double[] matrix(String[] rows, String[] cols, CharCostModel costs) {
+        return matrix(rows, cols, costs, Double.POSITIVE_INFINITY, ForkJoinPool.commonPool());
+    }
+
+//  Distances of transforming rows[i] into cols[j] at to2DArrayHash(j, i, cols.length),
+//  positive infinity for the distances greater than maxDistance
+    public static double[] matrix(String[] rows, String[] cols, CharCostModel costs, double maxDistance, ForkJoinPool pool) {
+        int numCols = cols.length;
+        double[] res = new double[Math.multiplyExact(rows.length, numCols)];
+        double minIndel = costs.minIndelCost();
+        pool.invoke(new RowsTask((row, prev, curr) -> {
+            String s1 = rows[row];
+            PeqTable peq = peqTable(s1, costs);
+            for (int col = 0; col < numCols; col++) {
+                String s2 = cols[col];
+                double d;
+                if (Math.abs(s1.length() - s2.length()) * minIndel > maxDistance)
+                    d = Double.POSITIVE_INFINITY;
+                else
+                    d = distance(s1, s2, peq, costs, maxDistance, prev, curr);
+                res[to2DArrayHash(col, row, numCols)] = d;
+            }
+        }, 0, rows.length, maxLength(cols) + 1));
+        return res;
+    }
+
+//  k nearest columns of every row ordered by the distance, then by the column index
+    public static final class Neighbours {
+
+        private final int k;
+        private final int[] counts;
+        private final int[] indices;
+        private final double[] distances;
+
+        private Neighbours(int numRows, int k) {
+            this.k = k;
+            this.counts = new int[numRows];
+            this.indices = new int[Math.multiplyExact(numRows, k)];
+            this.distances = new double[indices.length];
+        }
+
+        public int k() {return k;}
+        public int numRows() {return counts.length;}
+        public int count(int row) {return counts[row];}
+        public int index(int row, int rank) {return indices[to2DArrayHash(checkRank(row, rank), row, k)];}
+        public double distance(int row, int rank) {return distances[to2DArrayHash(checkRank(row, rank), row, k)];}
+
+        private int checkRank(int row, int rank) {
+            if (rank < 0 || rank >= counts[row])
+                throw new IndexOutOfBoundsException("Rank " + rank + " of " + counts[row] + " neighbours.");
+            return rank;
+        }
+
+//      the distance a column has to beat to get in the row
+        private double bound(int row, double maxDistance) {
+            return counts[row] < k ? maxDistance : distances[to2DArrayHash(k - 1, row, k)];
+        }
+
+        private void offer(int row, int col, double d) {
+            int base = to2DArrayHash(0, row, k);
+            int c = counts[row];
+            int i = c;
+            while (i > 0 && (distances[base + i - 1] > d || (distances[base + i - 1] == d && indices[base + i - 1] > col)))
+                i--;
+            if (i == k)
+                return;
+            int shifted = Math.min(c, k - 1) - i;
+            System.arraycopy(distances, base + i, distances, base + i + 1, shifted);
+            System.arraycopy(indices, base + i, indices, base + i + 1, shifted);
+            distances[base + i] = d;
+            indices[base + i] = col;
+            if (c < k)
+                counts[row]++;
+        }
+
+    }
+
+    public static Neighbours nearest(String[] rows, String[] cols, CharCostModel costs, int k) {
+        return nearest(rows, cols, costs, k, Double.POSITIVE_INFINITY, ForkJoinPool.commonPool());
+    }
+
+//  Columns are visited from the closest length to the row outwards, so the length difference
+//  lower bound only grows and the search stops once it exceeds the k-th best distance.
+    public static Neighbours nearest(String[] rows, String[] cols, CharCostModel costs, int k, double maxDistance, ForkJoinPool pool) {
+        if (k <= 0)
+            throw new IllegalArgumentException("k must be positive.");
+        Neighbours res = new Neighbours(rows.length, k);
+        Integer[] boxed = new Integer[cols.length];
+        for (int i = 0; i < boxed.length; i++)
+            boxed[i] = i;
+        Arrays.sort(boxed, Comparator.comparingInt(i -> cols[i].length()));
+        int[] byLength = new int[cols.length];
+        int[] lengths = new int[cols.length];
+        for (int i = 0; i < byLength.length; i++) {
+            byLength[i] = boxed[i];
+            lengths[i] = cols[byLength[i]].length();
+        }
+        double minIndel = costs.minIndelCost();
+        pool.invoke(new RowsTask((row, prev, curr) -> {
+            String s1 = rows[row];
+            PeqTable peq = peqTable(s1, costs);
+            int n = s1.length();
+            int hi = lowerBound(lengths, n), lo = hi - 1;
+            while (lo >= 0 || hi < lengths.length) {
+                int idx;
+                if (lo < 0 || (hi < lengths.length && lengths[hi] - n <= n - lengths[lo]))
+                    idx = hi++;
+                else
+                    idx = lo--;
+                double bound = res.bound(row, maxDistance);
+                if (Math.abs(lengths[idx] - n) * minIndel > bound)
+                    break;
+                int col = byLength[idx];
+                double d = distance(s1, cols[col], peq, costs, bound, prev, curr);
+                if (d <= bound)
+                    res.offer(row, col, d);
+            }
+        }, 0, rows.length, maxLength(cols) + 1));
+        return res;
+    }
+
+    private static int lowerBound(int[] sorted, int key) {
+        int lo = 0, hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < key)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+}
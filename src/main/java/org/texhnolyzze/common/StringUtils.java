@@ -1,8 +1,34 @@
 package org.texhnolyzze.common;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiConsumer;
+import java.util.function.IntUnaryOperator;
+import java.util.function.ObjIntConsumer;
 import java.util.function.BiFunction;
+import java.util.stream.Collectors;
 
 import static org.texhnolyzze.common.MathUtils.*;
 
@@ -14,15 +40,47 @@ public final class StringUtils {
     
     private StringUtils() {}
     
-    private static final int PRIME = 113;
+//  Polynomial hash modulo the Mersenne prime 2^61 - 1, collisions are negligible even on 
+//  repetitive text. The base is random so the collisions can't be forced by the input.
+    private static final long HASH_MOD = (1L << 61) - 1;
+    private static final long HASH_BASE = 256 + ThreadLocalRandom.current().nextLong(HASH_MOD - 512);
     
-    private static int hash(String s, int l, int r) {
-	int hash = 0;
+    private static long mulMod(long a, long b) {
+        long lo = a * b, hi = Math.multiplyHigh(a, b);
+        long r = (lo & HASH_MOD) + (lo >>> 61) + (hi << 3);
+        r = (r & HASH_MOD) + (r >>> 61);
+        return r >= HASH_MOD ? r - HASH_MOD : r;
+    }
+    
+    private static long addMod(long a, long b) {
+        long r = a + b;
+        return r >= HASH_MOD ? r - HASH_MOD : r;
+    }
+    
+    private static long powMod(long a, int b) {
+        long res = 1;
+        for (; b > 0; b >>= 1, a = mulMod(a, a)) {
+            if ((b & 1) != 0)
+                res = mulMod(res, a);
+        }
+        return res;
+    }
+    
+    private static long hash(CharSequence s, int l, int r) {
+	long hash = 0;
 	for (int i = l; i <= r; i++) 
-            hash = PRIME * hash + s.charAt(i);
+            hash = addMod(mulMod(hash, HASH_BASE), s.charAt(i));
 	return hash;
     }
     
+//  hash of the window [i + 1, i + m] by the hash of the window [i, i + m - 1], pPow = base^(m - 1)
+    private static long roll(long hash, char out, char in, long pPow) {
+        hash -= mulMod(out, pPow);
+        if (hash < 0)
+            hash += HASH_MOD;
+        return addMod(mulMod(hash, HASH_BASE), in);
+    }
+    
     private static boolean check(String s, String pattern, int l, int r) {
 	for (int i = l, j = 0; i <= r; i++, j++) {
             if (s.charAt(i) != pattern.charAt(j))
@@ -45,21 +103,73 @@ public final class StringUtils {
             return -1;
         if (m == 0)
             return from;
-	int p_pow = pow(PRIME, m - 1);
-	int patt_hash = hash(pattern, 0, m - 1);
-	int s_hash = hash(s, from, from + m - 1);
-	if (s_hash == patt_hash) {
-            if (check(s, pattern, from, from + m - 1))
-                return from;
-	}
-	for (int i = from + 1; i <= from + n - m; i++) {
-            s_hash = (s_hash - s.charAt(i - 1) * p_pow) * PRIME + s.charAt(i + m - 1);
+        int r = rarestCharIndex(pattern);
+        char rare = pattern.charAt(r);
+        int last = to - m + 1;
+        int i = nextCandidate(s, rare, r, from, last);
+        if (i == -1)
+            return -1;
+	long p_pow = powMod(HASH_BASE, m - 1);
+	long patt_hash = hash(pattern, 0, m - 1);
+	long s_hash = hash(s, i, i + m - 1);
+        while (true) {
             if (s_hash == patt_hash) {
                 if (check(s, pattern, i, i + m - 1))
                     return i;
             }
-	}
-	return -1;
+            int next = nextCandidate(s, rare, r, i + 1, last);
+            if (next == -1)
+                return -1;
+            if (next - i >= m)
+                s_hash = hash(s, next, next + m - 1);
+            else {
+                for (; i < next; i++) 
+                    s_hash = roll(s_hash, s.charAt(i), s.charAt(i + m), p_pow);
+            }
+            i = next;
+        }
+    }
+    
+//  Chars by descending frequency in a typical text. Search skips ahead to the candidate 
+//  positions of the rarest pattern char by String.indexOf(char), which is a vectorized intrinsic.
+    private static final String FREQUENT_CHARS = " etaoinshrdlcumwfgypbvkjxqz\nETAOINSHRDLCUMWFGYPBVKJXQZ0123456789.,-_'\"():;=/\t";
+    private static final int NON_ASCII_RARITY = 40; // approximately as rare as the capital letters
+    private static final byte[] ASCII_RARITY = new byte[128];
+    static {
+        Arrays.fill(ASCII_RARITY, Byte.MAX_VALUE);
+        for (int i = 0; i < FREQUENT_CHARS.length(); i++) 
+            ASCII_RARITY[FREQUENT_CHARS.charAt(i)] = (byte) i;
+    }
+    
+//  index of the (approximately) rarest char of the pattern
+    public static int rarestCharIndex(String pattern) {
+        int idx = 0, max = -1;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            int rarity = c < ASCII_RARITY.length ? ASCII_RARITY[c] : NON_ASCII_RARITY;
+            if (rarity > max) {
+                max = rarity;
+                idx = i;
+            }
+        }
+        return idx;
+    }
+    
+//  First start of the pattern window in [from, last] having the char c at the offset or -1. 
+//  String.indexOf(char) can't be bounded, so it's used only while the rest of the string 
+//  after the window is not longer than the window itself, small windows of large strings are 
+//  scanned by the plain loop.
+    private static int nextCandidate(String s, char c, int offset, int from, int last) {
+        int start = from + offset, end = last + offset;
+        if (s.length() - 1 - end <= end - start) {
+            int i = s.indexOf(c, start);
+            return i == -1 || i > end ? -1 : i - offset;
+        }
+        for (int i = start; i <= end; i++) {
+            if (s.charAt(i) == c)
+                return i - offset;
+        }
+        return -1;
     }
     
 //  Cache for effective substring search by Knuth-Morris-Pratt(KMP) algorithm
@@ -80,20 +190,199 @@ public final class StringUtils {
         return p;
     }
     
+//  Char to char mapping applied by the search machines to both the patterns and the text 
+//  at the transition step, so e.g. case-insensitive search doesn't need a folded copy of the text
+    public static final class CharMapping {
+        
+        public static final CharMapping IDENTITY = new CharMapping(c -> c);
+        public static final CharMapping CASE_INSENSITIVE = new CharMapping(c -> Character.toLowerCase(Character.toUpperCase(c)));
+        public static final CharMapping YO_TO_YE = of(new char[] {'ё', 'Ё'}, new char[] {'е', 'Е'});
+        
+        private final char[] table = new char[Character.MAX_VALUE + 1];
+        
+        private CharMapping(IntUnaryOperator f) {
+            for (int c = 0; c < table.length; c++) 
+                table[c] = (char) f.applyAsInt(c);
+        }
+        
+        public char map(char c) {
+            return table[c];
+        }
+        
+        public String map(String s) {
+            char[] chars = new char[s.length()];
+            for (int i = 0; i < chars.length; i++) 
+                chars[i] = table[s.charAt(i)];
+            return new String(chars);
+        }
+        
+        public boolean isIdentity() {
+            for (int c = 0; c < table.length; c++) {
+                if (table[c] != c)
+                    return false;
+            }
+            return true;
+        }
+        
+        public CharMapping andThen(CharMapping after) {
+            return new CharMapping(c -> after.table[table[c]]);
+        }
+        
+        public static CharMapping of(IntUnaryOperator f) {
+            return new CharMapping(c -> (char) f.applyAsInt(c));
+        }
+        
+//      maps from[i] to to[i], other chars are left as is
+        public static CharMapping of(char[] from, char[] to) {
+            if (from.length != to.length)
+                throw new IllegalArgumentException("from.length must be equal to to.length");
+            CharMapping mapping = new CharMapping(c -> c);
+            for (int i = 0; i < from.length; i++) 
+                mapping.table[from[i]] = to[i];
+            return mapping;
+        }
+        
+    }
+    
+//  Receives a match of the pattern with the given index at [start, end] (both inclusive)
+    @FunctionalInterface
+    public interface MatchConsumer {
+        void accept(int patternIndex, int start, int end);
+    }
+    
+//  Same as MatchConsumer, but for the texts which don't fit in int positions (files, streams)
+    @FunctionalInterface
+    public interface LongMatchConsumer {
+        void accept(int patternIndex, long start, long end);
+    }
+    
+//  MatchConsumer which collects matches into the reusable int array, 
+//  after clear() the same storage is used for the next search
+    public static final class MatchSink implements MatchConsumer {
+        
+        private int size;
+        private int[] matches = new int[3 * 16]; // (patternIndex, start, end) triples
+        
+        @Override
+        public void accept(int patternIndex, int start, int end) {
+            int i = 3 * size;
+            if (i == matches.length)
+                matches = Arrays.copyOf(matches, 2 * matches.length);
+            matches[i] = patternIndex;
+            matches[i + 1] = start;
+            matches[i + 2] = end;
+            size++;
+        }
+        
+        public int size() {return size;}
+        public boolean isEmpty() {return size == 0;}
+        public int patternIndex(int i) {return matches[3 * checkIndex(i)];}
+        public int start(int i) {return matches[3 * checkIndex(i) + 1];}
+        public int end(int i) {return matches[3 * checkIndex(i) + 2];}
+        
+        public void forEach(MatchConsumer consumer) {
+            for (int i = 0; i < 3 * size; i += 3) 
+                consumer.accept(matches[i], matches[i + 1], matches[i + 2]);
+        }
+        
+        public void clear() {size = 0;}
+        
+        private int checkIndex(int i) {
+            if (i < 0 || i >= size)
+                throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size);
+            return i;
+        }
+        
+    }
+    
+//  Search machines scan the character streams by the fixed-size buffers, 
+//  each filled buffer is passed to the scanner, which keeps track of the stream position itself
+    private interface CharsScanner {
+        void scan(CharBuffer chars, LongMatchConsumer consumer);
+    }
+    
+    private static final int DEFAULT_STREAM_BUFFER_SIZE = 8192;
+    
+//  The smallest buffers that always make progress: a surrogate pair must fit the chars 
+//  and the longest encoded char pair must fit the bytes, else a read or decode never advances.
+    private static final int MIN_STREAM_CHARS = 2;
+    
+    private static void checkStreamBuffer(CharBuffer chars) {
+        if (chars.capacity() < MIN_STREAM_CHARS)
+            throw new IllegalArgumentException("Chars buffer is too small: " + chars.capacity() + ", at least " + MIN_STREAM_CHARS + " chars required");
+    }
+    
+    private static void checkStreamBuffers(Charset charset, ByteBuffer bytes, CharBuffer chars) {
+        checkStreamBuffer(chars);
+        if (!charset.canEncode())
+            return;
+        int minBytes = MIN_STREAM_CHARS * (int) Math.ceil(charset.newEncoder().maxBytesPerChar());
+        if (bytes.capacity() < minBytes)
+            throw new IllegalArgumentException("Bytes buffer is too small for " + charset + ": " + bytes.capacity() + ", at least " + minBytes + " bytes required");
+    }
+    
+    private static long scanStream(Reader in, CharBuffer chars, CharsScanner scanner, LongMatchConsumer consumer) throws IOException {
+        checkStreamBuffer(chars);
+        long offset = 0;
+        chars.clear();
+        while (in.read(chars) != -1) 
+            offset = drain(chars, offset, scanner, consumer);
+        return offset;
+    }
+    
+    private static long scanStream(ReadableByteChannel in, Charset charset, ByteBuffer bytes, CharBuffer chars, CharsScanner scanner, LongMatchConsumer consumer) throws IOException {
+        checkStreamBuffers(charset, bytes, chars);
+        CharsetDecoder decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        long offset = 0;
+        boolean eof = false;
+        bytes.clear();
+        chars.clear();
+        while (!eof) {
+            eof = in.read(bytes) == -1;
+            bytes.flip();
+            CoderResult r;
+            do {
+                r = decoder.decode(bytes, chars, eof);
+                offset = drain(chars, offset, scanner, consumer);
+            } while (r.isOverflow());
+            bytes.compact();
+//          an incomplete sequence filling the whole buffer of a charset that can't tell its size
+            if (!eof && !bytes.hasRemaining())
+                throw new IllegalArgumentException("Bytes buffer is too small for " + charset + ": " + bytes.capacity());
+        }
+        while (decoder.flush(chars).isOverflow())
+            offset = drain(chars, offset, scanner, consumer);
+        return drain(chars, offset, scanner, consumer);
+    }
+    
+    private static long drain(CharBuffer chars, long offset, CharsScanner scanner, LongMatchConsumer consumer) {
+        chars.flip();
+        int n = chars.remaining();
+        if (n != 0)
+            scanner.scan(chars, consumer);
+        chars.clear();
+        return offset + n;
+    }
+    
     public static class MultiPatternSearchMachine {
         
         private final Node root = new Node('\0', null, false); 
         private final String[] patterns;
         {root.parent = root.suffixReference = root;}
         
-        private MultiPatternSearchMachine(Iterable<String> lines, int numLines) {
+        private final CharMapping mapping;
+        
+        private MultiPatternSearchMachine(Iterable<String> lines, int numLines, CharMapping mapping) {
+            this.mapping = mapping;
             int idx = 0;
             patterns = new String[numLines];
             for (String line : lines) {
                 if (line.isEmpty())
                     throw new IllegalArgumentException("Empty lines aren't allowed.");
                 patterns[idx] = line;
-                addLine(line, idx, 0, root);
+                addLine(mapping.map(line), idx, 0, root);
                 idx++;
             }
             if (idx != numLines)
@@ -149,58 +438,156 @@ public final class StringUtils {
             }
         }
         
-        private Node state = root;
-        public void reset() {state = root;}
-        public Iterable<String> nextChar(char c) {
-            Node n;
-            while ((n = state.childs.get(c)) == null) {
-                if (state == root)
-                    return Collections.EMPTY_LIST;
-                state = state.suffixReference;
-            }
-            state = n;
-            if (state.isLeaf || state.nextLeafNode != null) {
-                return () -> {
-                    return iterator();
-                };
-            }
-            return Collections.EMPTY_LIST;
-        }
+//      The machine is immutable and may be shared between threads, the search state 
+//      is kept by Matcher cursors, which are cheap, so create one per thread.
+//      Stateful methods of the machine itself delegate to its own Matcher.
+        public Matcher matcher() {return new Matcher();}
+        
+        private final Matcher cursor = new Matcher();
+        
+        public void reset() {cursor.reset();}
+        public Iterable<String> nextChar(char c) {return cursor.nextChar(c);}
+        public int nextChar(char c, int position, MatchConsumer consumer) {return cursor.nextChar(c, position, consumer);}
+        
+        public int numPatterns() {return patterns.length;}
+        public String getPattern(int patternIndex) {return patterns[patternIndex];}
 //                                                 match             bounds
-        public void search(String text, BiConsumer<String, Pair<Integer, Integer>> callback) {search(text, callback, 0, text.length() - 1);}
-        public void search(String text, BiConsumer<String, Pair<Integer, Integer>> callback, int from) {search(text, callback, from, text.length() - 1);}
-        public void search(String text, BiConsumer<String, Pair<Integer, Integer>> callback, int from, int to) {
-            Node n;
-            for (int i = from; i <= to; i++) {
-                while ((n = state.childs.get(text.charAt(i))) == null) {
+        public void search(String text, BiConsumer<String, Pair<Integer, Integer>> callback) {cursor.search(text, callback);}
+        public void search(String text, BiConsumer<String, Pair<Integer, Integer>> callback, int from) {cursor.search(text, callback, from);}
+        public void search(String text, BiConsumer<String, Pair<Integer, Integer>> callback, int from, int to) {cursor.search(text, callback, from, to);}
+        public void search(String text, MatchConsumer consumer) {cursor.search(text, consumer);}
+        public void search(String text, MatchConsumer consumer, int from) {cursor.search(text, consumer, from);}
+        public void search(String text, MatchConsumer consumer, int from, int to) {cursor.search(text, consumer, from, to);}
+        public long search(Reader in, LongMatchConsumer consumer) throws IOException {return cursor.search(in, consumer);}
+        public long search(Reader in, CharBuffer buffer, LongMatchConsumer consumer) throws IOException {return cursor.search(in, buffer, consumer);}
+        public long search(ReadableByteChannel in, Charset charset, LongMatchConsumer consumer) throws IOException {return cursor.search(in, charset, consumer);}
+        public long search(ReadableByteChannel in, Charset charset, ByteBuffer bytesBuffer, CharBuffer charsBuffer, LongMatchConsumer consumer) throws IOException {
+            return cursor.search(in, charset, bytesBuffer, charsBuffer, consumer);
+        }
+        
+        public final class Matcher {
+            
+            private Node state = root;
+            private long streamPosition; // chars read by the streaming searches
+            
+            public void reset() {
+                state = root;
+                streamPosition = 0;
+            }
+            public Iterable<String> nextChar(char c) {
+                Node n;
+                c = mapping.map(c);
+                while ((n = state.childs.get(c)) == null) {
                     if (state == root)
-                        break;
+                        return Collections.EMPTY_LIST;
                     state = state.suffixReference;
                 }
-                if (n != null) 
-                    state = n;
+                state = n;
                 if (state.isLeaf || state.nextLeafNode != null) {
-                    Node curr = state.isLeaf ? state : state.nextLeafNode;
-                    while (curr != null) {
-                        String match = patterns[curr.matchingPatternIndex];
-                        callback.accept(match, Pair.of(i - match.length() + 1, i));
-                        curr = curr.nextLeafNode;
+                    return () -> {
+                        return iterator();
+                    };
+                }
+                return Collections.EMPTY_LIST;
+            }
+            
+//          reports matches ending at the given position of the text, returns number of matches
+            public int nextChar(char c, int position, MatchConsumer consumer) {
+                Node n;
+                c = mapping.map(c);
+                while ((n = state.childs.get(c)) == null) {
+                    if (state == root)
+                        return 0;
+                    state = state.suffixReference;
+                }
+                state = n;
+                return reportMatches(position, consumer);
+            }
+            
+            private int reportMatches(int end, MatchConsumer consumer) {
+                int num = 0;
+                for (Node curr = state.isLeaf ? state : state.nextLeafNode; curr != null; curr = curr.nextLeafNode) {
+                    consumer.accept(curr.matchingPatternIndex, end - patterns[curr.matchingPatternIndex].length() + 1, end);
+                    num++;
+                }
+                return num;
+            }
+            
+//                                                     match             bounds
+            public void search(String text, BiConsumer<String, Pair<Integer, Integer>> callback) {search(text, callback, 0, text.length() - 1);}
+            public void search(String text, BiConsumer<String, Pair<Integer, Integer>> callback, int from) {search(text, callback, from, text.length() - 1);}
+            public void search(String text, BiConsumer<String, Pair<Integer, Integer>> callback, int from, int to) {
+                search(text, (patternIndex, start, end) -> callback.accept(patterns[patternIndex], Pair.of(start, end)), from, to);
+            }
+            
+            public void search(String text, MatchConsumer consumer) {search(text, consumer, 0, text.length() - 1);}
+            public void search(String text, MatchConsumer consumer, int from) {search(text, consumer, from, text.length() - 1);}
+            public void search(String text, MatchConsumer consumer, int from, int to) {
+                for (int i = from; i <= to; i++) {
+                    step(text.charAt(i));
+                    if (state.isLeaf || state.nextLeafNode != null) 
+                        reportMatches(i, consumer);
+                }
+            }
+            
+//          Streaming search continues from the current state of the matcher, so a match may 
+//          span several calls. Bounds of the matches are absolute char offsets: the chars read by 
+//          all the streaming searches since the creation or the last reset() are counted. 
+//          Returns the number of chars read by this call.
+            public long search(Reader in, LongMatchConsumer consumer) throws IOException {
+                return search(in, CharBuffer.allocate(DEFAULT_STREAM_BUFFER_SIZE), consumer);
+            }
+            
+            public long search(Reader in, CharBuffer buffer, LongMatchConsumer consumer) throws IOException {
+                return scanStream(in, buffer, this::scanChars, consumer);
+            }
+            
+            public long search(ReadableByteChannel in, Charset charset, LongMatchConsumer consumer) throws IOException {
+                return search(in, charset, ByteBuffer.allocate(DEFAULT_STREAM_BUFFER_SIZE), CharBuffer.allocate(DEFAULT_STREAM_BUFFER_SIZE), consumer);
+            }
+            
+            public long search(ReadableByteChannel in, Charset charset, ByteBuffer bytesBuffer, CharBuffer charsBuffer, LongMatchConsumer consumer) throws IOException {
+                return scanStream(in, charset, bytesBuffer, charsBuffer, this::scanChars, consumer);
+            }
+            
+            private void scanChars(CharBuffer chars, LongMatchConsumer consumer) {
+                int pos = chars.position();
+                long offset = streamPosition;
+                for (int i = pos; i < chars.limit(); i++) {
+                    step(chars.get(i));
+                    if (state.isLeaf || state.nextLeafNode != null) {
+                        long end = offset + i - pos;
+                        for (Node curr = state.isLeaf ? state : state.nextLeafNode; curr != null; curr = curr.nextLeafNode) 
+                            consumer.accept(curr.matchingPatternIndex, end - patterns[curr.matchingPatternIndex].length() + 1, end);
                     }
                 }
+                streamPosition = offset + chars.limit() - pos;
             }
-        }
-        
-        private Iterator<String> iterator() {
-            return new Iterator<String>() {
-                Node curr = state.isLeaf ? state : state.nextLeafNode;
-                @Override public boolean hasNext() {return curr != null;}
-                @Override
-                public String next() {
-                    String s = patterns[curr.matchingPatternIndex];
-                    curr = curr.nextLeafNode;
-                    return s;
+            
+            private void step(char c) {
+                Node n;
+                c = mapping.map(c);
+                while ((n = state.childs.get(c)) == null) {
+                    if (state == root)
+                        return;
+                    state = state.suffixReference;
                 }
-            };
+                state = n;
+            }
+            
+            private Iterator<String> iterator() {
+                return new Iterator<String>() {
+                    Node curr = state.isLeaf ? state : state.nextLeafNode;
+                    @Override public boolean hasNext() {return curr != null;}
+                    @Override
+                    public String next() {
+                        String s = patterns[curr.matchingPatternIndex];
+                        curr = curr.nextLeafNode;
+                        return s;
+                    }
+                };
+            }
+            
         }
         
         private static class Node {
@@ -217,6 +604,10 @@ public final class StringUtils {
         }
         
         public static MultiPatternSearchMachine build(Iterable<String> lines) {
+            return build(lines, CharMapping.IDENTITY);
+        }
+        
+        public static MultiPatternSearchMachine build(Iterable<String> lines, CharMapping mapping) {
             int size = 0;
             if (lines instanceof Collection) 
                 size = ((Collection<?>) lines).size();
@@ -224,11 +615,746 @@ public final class StringUtils {
                 for (String line : lines)
                     size++;
             }
-            return new MultiPatternSearchMachine(lines, size);
+            return new MultiPatternSearchMachine(lines, size, mapping);
         }
         
         public static MultiPatternSearchMachine build(Iterable<String> lines, int numLines) {
-            return new MultiPatternSearchMachine(lines, numLines);
+            return new MultiPatternSearchMachine(lines, numLines, CharMapping.IDENTITY);
+        }
+        
+        public static MultiPatternSearchMachine build(Iterable<String> lines, int numLines, CharMapping mapping) {
+            return new MultiPatternSearchMachine(lines, numLines, mapping);
+        }
+        
+        public CharMapping getMapping() {return mapping;}
+        
+        public CompiledMultiPatternSearchMachine compile() {
+            return CompiledMultiPatternSearchMachine.build(Arrays.asList(patterns), mapping);
+        }
+        
+    }
+    
+//  Aho-Corasick automaton compiled to a full DFA over the patterns alphabet.
+//  Transitions are stored in a flat int table (state x alphabet index), so each char 
+//  costs exactly one table lookup, without boxing and without following suffix links.
+    public static class CompiledMultiPatternSearchMachine {
+        
+        private final Alphabet alphabet;
+        private final CharMapping mapping;
+        private final int k; // alphabet size
+        private final int[] delta; // transitions: delta[to2DArrayHash(c_idx, state, k)]
+        private final int[] fail; // suffix references
+        private final int[] output; // index of the pattern ending in state or -1
+        private final int[] outputLink; // nearest state by suffix references with output or -1
+        private final String[] patterns;
+        private final int maxPatternLength;
+        
+        private CompiledMultiPatternSearchMachine(Alphabet alphabet, CharMapping mapping, int[] delta, int[] fail, int[] output, int[] outputLink, String[] patterns) {
+            this.alphabet = alphabet;
+            this.mapping = mapping;
+            this.k = alphabet.size();
+            this.delta = delta;
+            this.fail = fail;
+            this.output = output;
+            this.outputLink = outputLink;
+            this.patterns = patterns;
+            int max = 0;
+            for (String pattern : patterns)
+                max = Math.max(max, pattern.length());
+            this.maxPatternLength = max;
+        }
+        
+        public int numStates() {return output.length;}
+        public int numPatterns() {return patterns.length;}
+        public String getPattern(int patternIndex) {return patterns[patternIndex];}
+        public Alphabet getAlphabet() {return alphabet;}
+        public CharMapping getMapping() {return mapping;}
+        public int maxPatternLength() {return maxPatternLength;}
+        
+        private int next(int s, char c) {
+            int i = alphabet.indexOf(mapping.map(c));
+            return i == -1 ? 0 : delta[to2DArrayHash(i, s, k)];
+        }
+        
+        private int reportMatches(int s, int end, MatchConsumer consumer) {
+            int num = 0;
+            for (int curr = output[s] != -1 ? s : outputLink[s]; curr != -1; curr = outputLink[curr]) {
+                int patternIndex = output[curr];
+                consumer.accept(patternIndex, end - patterns[patternIndex].length() + 1, end);
+                num++;
+            }
+            return num;
+        }
+//      runs the machine over [from, to] starting from the state s, 
+//      matches ending before reportFrom are skipped, returns the resulting state
+        private int scan(CharSequence text, int s, int from, int reportFrom, int to, MatchConsumer consumer) {
+            for (int i = from; i < reportFrom; i++)
+                s = next(s, text.charAt(i));
+            for (int i = reportFrom; i <= to; i++) {
+                s = next(s, text.charAt(i));
+                if (output[s] != -1 || outputLink[s] != -1)
+                    reportMatches(s, i, consumer);
+            }
+            return s;
+        }
+        
+//      cursors as in MultiPatternSearchMachine, a Matcher holds just the state index
+        public Matcher matcher() {return new Matcher();}
+        
+        private final Matcher cursor = new Matcher();
+        
+        public void reset() {cursor.reset();}
+        public Iterable<String> nextChar(char c) {return cursor.nextChar(c);}
+        public int nextChar(char c, int position, MatchConsumer consumer) {return cursor.nextChar(c, position, consumer);}
+//                                                 match             bounds
+        public void search(String text, BiConsumer<String, Pair<Integer, Integer>> callback) {cursor.search(text, callback);}
+        public void search(String text, BiConsumer<String, Pair<Integer, Integer>> callback, int from) {cursor.search(text, callback, from);}
+        public void search(String text, BiConsumer<String, Pair<Integer, Integer>> callback, int from, int to) {cursor.search(text, callback, from, to);}
+        public void search(String text, MatchConsumer consumer) {cursor.search(text, consumer);}
+        public void search(String text, MatchConsumer consumer, int from) {cursor.search(text, consumer, from);}
+        public void search(String text, MatchConsumer consumer, int from, int to) {cursor.search(text, consumer, from, to);}
+        public long search(Reader in, LongMatchConsumer consumer) throws IOException {return cursor.search(in, consumer);}
+        public long search(Reader in, CharBuffer buffer, LongMatchConsumer consumer) throws IOException {return cursor.search(in, buffer, consumer);}
+        public long search(ReadableByteChannel in, Charset charset, LongMatchConsumer consumer) throws IOException {return cursor.search(in, charset, consumer);}
+        public long search(ReadableByteChannel in, Charset charset, ByteBuffer bytesBuffer, CharBuffer charsBuffer, LongMatchConsumer consumer) throws IOException {
+            return cursor.search(in, charset, bytesBuffer, charsBuffer, consumer);
+        }
+        
+        public final class Matcher {
+            
+            private int state;
+            private long streamPosition; // chars read by the streaming searches
+            
+            public void reset() {
+                state = 0;
+                streamPosition = 0;
+            }
+            public Iterable<String> nextChar(char c) {
+                state = next(state, c);
+                int s = state;
+                if (output[s] == -1 && outputLink[s] == -1)
+                    return Collections.emptyList();
+                return () -> new Iterator<String>() {
+                    int curr = output[s] != -1 ? s : outputLink[s];
+                    @Override public boolean hasNext() {return curr != -1;}
+                    @Override
+                    public String next() {
+                        String match = patterns[output[curr]];
+                        curr = outputLink[curr];
+                        return match;
+                    }
+                };
+            }
+            
+//          reports matches ending at the given position of the text, returns number of matches
+            public int nextChar(char c, int position, MatchConsumer consumer) {
+                state = next(state, c);
+                return reportMatches(state, position, consumer);
+            }
+            
+//                                                     match             bounds
+            public void search(String text, BiConsumer<String, Pair<Integer, Integer>> callback) {search(text, callback, 0, text.length() - 1);}
+            public void search(String text, BiConsumer<String, Pair<Integer, Integer>> callback, int from) {search(text, callback, from, text.length() - 1);}
+            public void search(String text, BiConsumer<String, Pair<Integer, Integer>> callback, int from, int to) {
+                search(text, (patternIndex, start, end) -> callback.accept(patterns[patternIndex], Pair.of(start, end)), from, to);
+            }
+            
+            public void search(String text, MatchConsumer consumer) {search(text, consumer, 0, text.length() - 1);}
+            public void search(String text, MatchConsumer consumer, int from) {search(text, consumer, from, text.length() - 1);}
+            public void search(String text, MatchConsumer consumer, int from, int to) {
+                state = scan(text, state, from, from, to, consumer);
+            }
+            
+//          streaming search, the offsets are counted as in MultiPatternSearchMachine.Matcher
+            public long search(Reader in, LongMatchConsumer consumer) throws IOException {
+                return search(in, CharBuffer.allocate(DEFAULT_STREAM_BUFFER_SIZE), consumer);
+            }
+            
+            public long search(Reader in, CharBuffer buffer, LongMatchConsumer consumer) throws IOException {
+                return scanStream(in, buffer, this::scanChars, consumer);
+            }
+            
+            public long search(ReadableByteChannel in, Charset charset, LongMatchConsumer consumer) throws IOException {
+                return search(in, charset, ByteBuffer.allocate(DEFAULT_STREAM_BUFFER_SIZE), CharBuffer.allocate(DEFAULT_STREAM_BUFFER_SIZE), consumer);
+            }
+            
+            public long search(ReadableByteChannel in, Charset charset, ByteBuffer bytesBuffer, CharBuffer charsBuffer, LongMatchConsumer consumer) throws IOException {
+                return scanStream(in, charset, bytesBuffer, charsBuffer, this::scanChars, consumer);
+            }
+            
+            private void scanChars(CharBuffer chars, LongMatchConsumer consumer) {
+                int s = state;
+                int pos = chars.position();
+                long offset = streamPosition;
+                for (int i = pos; i < chars.limit(); i++) {
+                    s = next(s, chars.get(i));
+                    if (output[s] != -1 || outputLink[s] != -1) {
+                        long end = offset + i - pos;
+                        for (int curr = output[s] != -1 ? s : outputLink[s]; curr != -1; curr = outputLink[curr]) {
+                            int patternIndex = output[curr];
+                            consumer.accept(patternIndex, end - patterns[patternIndex].length() + 1, end);
+                        }
+                    }
+                }
+                state = s;
+                streamPosition = offset + chars.limit() - pos;
+            }
+            
+        }
+        
+        private int scan(ByteBuffer bytes, char[] charset, int s, int reportFrom, MatchConsumer consumer) {
+            int n = bytes.limit();
+            for (int i = 0; i < reportFrom; i++)
+                s = next(s, charset[bytes.get(i) & 0xFF]);
+            for (int i = reportFrom; i < n; i++) {
+                s = next(s, charset[bytes.get(i) & 0xFF]);
+                if (output[s] != -1 || outputLink[s] != -1)
+                    reportMatches(s, i, consumer);
+            }
+            return s;
+        }
+        
+        private static final int MIN_PARALLEL_CHUNK_SIZE = 1 << 16;
+        private static final int DEFAULT_FILE_CHUNK_SIZE = 1 << 24;
+        
+//      Parallel search doesn't use and doesn't change the state of the machine. 
+//      The text is split into chunks which are scanned in the pool, each chunk is preceded 
+//      by maxPatternLength() - 1 chars of the previous one, so matches crossing the 
+//      chunk bounds are found exactly once. Matches are reported in the same order 
+//      as by search(...), from the calling thread.
+        public void searchParallel(CharSequence text, MatchConsumer consumer) {
+            searchParallel(text, consumer, ForkJoinPool.commonPool());
+        }
+        
+        public void searchParallel(CharSequence text, MatchConsumer consumer, ForkJoinPool pool) {
+            int chunkSize = Math.max(MIN_PARALLEL_CHUNK_SIZE, text.length() / (4 * pool.getParallelism()) + 1);
+            searchParallel(text, consumer, 0, text.length() - 1, chunkSize, pool);
+        }
+        
+        public void searchParallel(CharSequence text, MatchConsumer consumer, int from, int to, int chunkSize, ForkJoinPool pool) {
+            if (chunkSize <= 0)
+                throw new IllegalArgumentException("chunkSize must be >0");
+            int overlap = maxPatternLength - 1;
+            int numChunks = to < from ? 0 : (int) (((long) to - from) / chunkSize + 1);
+            runChunks(numChunks, (sink, chunk) -> {
+                int chunkFrom = from + chunk * chunkSize;
+                int chunkTo = (int) Math.min(to, (long) chunkFrom + chunkSize - 1);
+                scan(text, 0, Math.max(from, chunkFrom - overlap), chunkFrom, chunkTo, sink);
+            }, (sink, chunk) -> sink.forEach(consumer), pool);
+        }
+        
+        private static final int CHUNKS_IN_FLIGHT_PER_THREAD = 2;
+        
+//      Scans the chunks in the pool with at most a few of them per thread in flight, so the 
+//      memory doesn't grow with the text, and drains the matches of every chunk in order 
+//      from the calling thread as soon as it's done. On failure the chunks which haven't 
+//      started yet are skipped and the running ones are waited for before rethrowing.
+        private static void runChunks(int numChunks, ObjIntConsumer<MatchSink> scanner, ObjIntConsumer<MatchSink> drain, ForkJoinPool pool) {
+            int window = Math.max(2, CHUNKS_IN_FLIGHT_PER_THREAD * pool.getParallelism());
+            AtomicBoolean cancelled = new AtomicBoolean();
+            Queue<ForkJoinTask<MatchSink>> inFlight = new Queue<>();
+            int next = 0;
+            try {
+                for (int chunk = 0; chunk < numChunks; chunk++) {
+                    for (; next < numChunks && next - chunk < window; next++) {
+                        int c = next;
+                        inFlight.add(pool.submit(() -> {
+                            if (cancelled.get())
+                                return null;
+                            MatchSink sink = new MatchSink();
+                            scanner.accept(sink, c);
+                            return sink;
+                        }));
+                    }
+                    drain.accept(inFlight.poll().join(), chunk);
+                }
+            } finally {
+                if (!inFlight.isEmpty()) {
+                    cancelled.set(true);
+                    for (ForkJoinTask<MatchSink> task : inFlight) 
+                        task.quietlyJoin();
+                }
+            }
+        }
+        
+//      Searches over the memory-mapped file, each byte is decoded to char by the single-byte charset, 
+//      so the bounds of the matches are byte offsets. See searchParallel(CharSequence, ...) for details.
+        public void searchParallel(Path file, LongMatchConsumer consumer) throws IOException {
+            searchParallel(file, StandardCharsets.ISO_8859_1, consumer, DEFAULT_FILE_CHUNK_SIZE, ForkJoinPool.commonPool());
+        }
+        
+        public void searchParallel(Path file, Charset charset, LongMatchConsumer consumer, int chunkSize, ForkJoinPool pool) throws IOException {
+            int overlap = maxPatternLength - 1;
+            if (chunkSize <= 0 || chunkSize > Integer.MAX_VALUE - overlap)
+                throw new IllegalArgumentException("chunkSize must be in (0, " + (Integer.MAX_VALUE - overlap) + "]");
+            char[] table = singleByteCharsetTable(charset);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                long numChunks = (size + chunkSize - 1) / chunkSize;
+                if (numChunks > Integer.MAX_VALUE)
+                    throw new IllegalArgumentException("chunkSize is too small for the file of size " + size);
+                runChunks((int) numChunks, (sink, chunk) -> {
+                    long start = (long) chunk * chunkSize;
+                    long regionStart = Math.max(0, start - overlap);
+                    long regionEnd = Math.min(size, start + chunkSize);
+                    try {
+                        scan(channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionEnd - regionStart), table, 0, (int) (start - regionStart), sink);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }, (sink, chunk) -> {
+                    long offset = Math.max(0, (long) chunk * chunkSize - overlap);
+                    sink.forEach((patternIndex, start, end) -> consumer.accept(patternIndex, offset + start, offset + end));
+                }, pool);
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+        }
+        
+        private static char[] singleByteCharsetTable(Charset charset) {
+            boolean singleByte;
+            try {
+                singleByte = charset.newEncoder().maxBytesPerChar() == 1;
+            } catch (UnsupportedOperationException ex) {
+                singleByte = false;
+            }
+            byte[] bytes = new byte[256];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = (byte) i;
+            char[] table = new String(bytes, charset).toCharArray();
+            if (!singleByte || table.length != bytes.length)
+                throw new IllegalArgumentException("Single-byte charset expected, got: " + charset);
+            return table;
+        }
+        
+        public static CompiledMultiPatternSearchMachine build(Iterable<String> lines) {
+            return build(lines, CharMapping.IDENTITY);
+        }
+        
+        public static CompiledMultiPatternSearchMachine build(Iterable<String> lines, CharMapping mapping) {
+            List<String> patterns = new ArrayList<>();
+            List<String> mapped = new ArrayList<>();
+            for (String line : lines) {
+                if (line.isEmpty())
+                    throw new IllegalArgumentException("Empty lines aren't allowed.");
+                patterns.add(line);
+                mapped.add(mapping.map(line));
+            }
+            Alphabet alphabet = Alphabet.fromLines(mapped);
+            int k = alphabet.size();
+            int n = 1, capacity = 16;
+            int[] delta = new int[capacity * k];
+            int[] output = new int[capacity];
+            Arrays.fill(delta, -1);
+            Arrays.fill(output, -1);
+            for (int p = 0; p < patterns.size(); p++) {
+                String line = mapped.get(p);
+                int s = 0;
+                for (int i = 0; i < line.length(); i++) {
+                    int idx = to2DArrayHash(alphabet.indexOf(line.charAt(i)), s, k);
+                    if (delta[idx] == -1) {
+                        if (n == capacity) {
+                            if ((long) capacity * 2 * k > Integer.MAX_VALUE)
+                                throw new IllegalArgumentException("Too many states for the alphabet of size " + k + ".");
+                            capacity *= 2;
+                            delta = Arrays.copyOf(delta, capacity * k);
+                            output = Arrays.copyOf(output, capacity);
+                            Arrays.fill(delta, n * k, delta.length, -1);
+                            Arrays.fill(output, n, output.length, -1);
+                        }
+                        delta[idx] = n++;
+                    }
+                    s = delta[idx];
+                }
+                if (output[s] == -1)
+                    output[s] = p;
+            }
+            delta = Arrays.copyOf(delta, n * k);
+            output = Arrays.copyOf(output, n);
+            int[] fail = new int[n];
+            int[] outputLink = new int[n];
+            Arrays.fill(outputLink, -1);
+//          BFS order guarantees that transitions of the suffix reference are already complete
+            int[] q = new int[n];
+            int head = 0, tail = 0;
+            for (int c = 0; c < k; c++) {
+                if (delta[c] == -1)
+                    delta[c] = 0;
+                else
+                    q[tail++] = delta[c];
+            }
+            while (head < tail) {
+                int s = q[head++];
+                for (int c = 0; c < k; c++) {
+                    int idx = to2DArrayHash(c, s, k);
+                    int f = delta[to2DArrayHash(c, fail[s], k)];
+                    int t = delta[idx];
+                    if (t == -1)
+                        delta[idx] = f;
+                    else {
+                        fail[t] = f;
+                        outputLink[t] = output[f] != -1 ? f : outputLink[f];
+                        q[tail++] = t;
+                    }
+                }
+            }
+            return new CompiledMultiPatternSearchMachine(alphabet, mapping, delta, fail, output, outputLink, patterns.toArray(new String[0]));
+        }
+        
+        private static final int MAGIC = 0x41434D32; // "ACM2"
+        
+//      Binary format (big-endian ints and chars): MAGIC, alphabet, chars changed by the mapping, 
+//      number of states, delta, fail, output and outputLink tables, patterns. 
+//      Loading it skips the construction.
+        public void save(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeTo(channel);
+            }
+        }
+        
+        public void writeTo(OutputStream out) throws IOException {
+            writeTo(Channels.newChannel(out));
+        }
+        
+        public void writeTo(WritableByteChannel out) throws IOException {
+            BinaryWriter w = new BinaryWriter(out);
+            w.putInt(MAGIC);
+            w.putInt(k);
+            for (int i = 0; i < k; i++) 
+                w.putChar(alphabet.charBy(i));
+            int numMapped = 0;
+            for (int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; c++) {
+                if (mapping.map((char) c) != c)
+                    numMapped++;
+            }
+            w.putInt(numMapped);
+            for (int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; c++) {
+                if (mapping.map((char) c) != c) {
+                    w.putChar((char) c);
+                    w.putChar(mapping.map((char) c));
+                }
+            }
+            w.putInt(numStates());
+            w.putInts(delta);
+            w.putInts(fail);
+            w.putInts(output);
+            w.putInts(outputLink);
+            w.putInt(patterns.length);
+            for (String pattern : patterns) {
+                w.putInt(pattern.length());
+                for (int i = 0; i < pattern.length(); i++) 
+                    w.putChar(pattern.charAt(i));
+            }
+            w.flush();
+        }
+        
+//      Maps the file into memory and copies the tables from it in bulk
+        public static CompiledMultiPatternSearchMachine load(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE)
+                    return readFrom(channel);
+                return read(new BinaryReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+            }
+        }
+        
+        public static CompiledMultiPatternSearchMachine readFrom(InputStream in) throws IOException {
+            return readFrom(Channels.newChannel(in));
+        }
+        
+        public static CompiledMultiPatternSearchMachine readFrom(ReadableByteChannel in) throws IOException {
+            return read(new BinaryReader(in));
+        }
+        
+        private static CompiledMultiPatternSearchMachine read(BinaryReader r) throws IOException {
+            if (r.getInt() != MAGIC)
+                throw new IOException("Not a compiled multi-pattern search machine.");
+            int numChars = r.getInt();
+            if (numChars < 0 || numChars > Character.MAX_VALUE + 1)
+                throw malformed();
+            char[] chars = r.getChars(numChars);
+            Alphabet alphabet = Alphabet.fromCharArray(chars);
+            int numMapped = r.getInt();
+            if (numMapped < 0 || numMapped > Character.MAX_VALUE + 1)
+                throw malformed();
+            char[] mapped = r.getChars(2 * numMapped);
+            CharMapping mapping = CharMapping.IDENTITY;
+            if (mapped.length != 0) {
+                char[] from = new char[mapped.length / 2], to = new char[mapped.length / 2];
+                for (int i = 0; i < from.length; i++) {
+                    from[i] = mapped[2 * i];
+                    to[i] = mapped[2 * i + 1];
+                }
+                try {
+                    mapping = CharMapping.of(from, to);
+                } catch (IllegalArgumentException ex) {
+                    throw new IOException("Malformed compiled multi-pattern search machine.", ex);
+                }
+            }
+            int k = alphabet.size(), n = r.getInt();
+            if (k != chars.length || n <= 0 || (long) n * k > Integer.MAX_VALUE)
+                throw malformed();
+            int[] delta = r.getInts(n * k), fail = r.getInts(n), output = r.getInts(n), outputLink = r.getInts(n);
+            int numPatterns = r.getInt();
+            if (numPatterns < 0)
+                throw malformed();
+            List<String> patterns = new ArrayList<>(); // grows with the data actually read
+            for (int i = 0; i < numPatterns; i++) {
+                char[] pattern = r.getChars(r.getInt());
+                if (pattern.length == 0)
+                    throw malformed();
+                patterns.add(new String(pattern));
+            }
+            checkRange(delta, 0, n);
+            checkRange(fail, 0, n);
+            checkRange(output, -1, numPatterns);
+            checkOutputLinks(output, outputLink);
+            return new CompiledMultiPatternSearchMachine(alphabet, mapping, delta, fail, output, outputLink, patterns.toArray(new String[0]));
+        }
+        
+        private static IOException malformed() {
+            return new IOException("Malformed compiled multi-pattern search machine.");
+        }
+        
+//      every value is in [from, to)
+        private static void checkRange(int[] a, int from, int to) throws IOException {
+            for (int v : a) {
+                if (v < from || v >= to)
+                    throw malformed();
+            }
+        }
+        
+//      output links lead to the states with the output and every chain of them ends with -1, 
+//      so reporting the matches can't loop
+        private static void checkOutputLinks(int[] output, int[] outputLink) throws IOException {
+            checkRange(outputLink, -1, output.length);
+            byte[] mark = new byte[output.length]; // 1 - on the chain being walked, 2 - known to end
+            for (int s = 0; s < output.length; s++) {
+                int curr = s;
+                while (curr != -1 && mark[curr] == 0) {
+                    mark[curr] = 1;
+                    int link = outputLink[curr];
+                    if (link != -1 && output[link] == -1)
+                        throw malformed();
+                    curr = link;
+                }
+                if (curr != -1 && mark[curr] == 1)
+                    throw malformed();
+                for (curr = s; curr != -1 && mark[curr] == 1; curr = outputLink[curr])
+                    mark[curr] = 2;
+            }
+        }
+        
+    }
+    
+//  Buffered bulk writing of ints and chars to the channel
+    private static final class BinaryWriter {
+        
+        private final WritableByteChannel out;
+        private final ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        
+        BinaryWriter(WritableByteChannel out) {
+            this.out = out;
+        }
+        
+        void putInt(int i) throws IOException {
+            require(Integer.BYTES);
+            buf.putInt(i);
+        }
+        
+        void putChar(char c) throws IOException {
+            require(Character.BYTES);
+            buf.putChar(c);
+        }
+        
+        void putInts(int[] a) throws IOException {
+            for (int off = 0; off < a.length;) {
+                require(Integer.BYTES);
+                int len = Math.min(buf.remaining() / Integer.BYTES, a.length - off);
+                buf.asIntBuffer().put(a, off, len);
+                buf.position(buf.position() + len * Integer.BYTES);
+                off += len;
+            }
+        }
+        
+        private void require(int numBytes) throws IOException {
+            if (buf.remaining() < numBytes)
+                flush();
+        }
+        
+        void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining())
+                out.write(buf);
+            buf.clear();
+        }
+        
+    }
+    
+//  Bulk reading of ints and chars either from the channel or from the (mapped) buffer
+    private static final class BinaryReader {
+        
+        private final ReadableByteChannel in;
+        private final ByteBuffer buf;
+        
+        BinaryReader(ReadableByteChannel in) {
+            this.in = in;
+            this.buf = ByteBuffer.allocate(1 << 16);
+            buf.limit(0);
+        }
+        
+        BinaryReader(ByteBuffer buf) {
+            this.in = null;
+            this.buf = buf;
+        }
+        
+        int getInt() throws IOException {
+            require(Integer.BYTES);
+            return buf.getInt();
+        }
+        
+//      Lengths come from the data, so they aren't trusted: the buffer must hold the whole array, 
+//      and reading from the channel grows the array as the data arrives, so a corrupt length 
+//      ends with EOFException rather than a huge allocation.
+        int[] getInts(int length) throws IOException {
+            int[] a = new int[initialLength(length, Integer.BYTES)];
+            for (int off = 0; off < length;) {
+                if (off == a.length)
+                    a = Arrays.copyOf(a, (int) Math.min(length, 2L * a.length));
+                require(Integer.BYTES);
+                int len = Math.min(buf.remaining() / Integer.BYTES, a.length - off);
+                buf.asIntBuffer().get(a, off, len);
+                buf.position(buf.position() + len * Integer.BYTES);
+                off += len;
+            }
+            return a;
+        }
+        
+        char[] getChars(int length) throws IOException {
+            char[] a = new char[initialLength(length, Character.BYTES)];
+            for (int off = 0; off < length;) {
+                if (off == a.length)
+                    a = Arrays.copyOf(a, (int) Math.min(length, 2L * a.length));
+                require(Character.BYTES);
+                int len = Math.min(buf.remaining() / Character.BYTES, a.length - off);
+                buf.asCharBuffer().get(a, off, len);
+                buf.position(buf.position() + len * Character.BYTES);
+                off += len;
+            }
+            return a;
+        }
+        
+        private static final int MAX_INITIAL_LENGTH = 1 << 16;
+        
+        private int initialLength(int length, int elementBytes) throws IOException {
+            if (length < 0)
+                throw new IOException("Negative length: " + length);
+            if (in != null)
+                return Math.min(length, MAX_INITIAL_LENGTH);
+            if ((long) length * elementBytes > buf.remaining())
+                throw new EOFException();
+            return length;
+        }
+        
+        private void require(int numBytes) throws IOException {
+            if (buf.remaining() >= numBytes)
+                return;
+            if (in == null)
+                throw new EOFException();
+            buf.compact();
+            while (buf.position() < numBytes) {
+                if (in.read(buf) == -1)
+                    throw new EOFException();
+            }
+            buf.flip();
+        }
+        
+    }
+    
+//  Rabin-Karp search of many patterns of the same length: every window of the text is looked up 
+//  by its rolling hash in an open addressing table of the pattern hashes. Cheaper to build and 
+//  smaller than Aho-Corasick machines for short fixed-length dictionaries. 
+//  Immutable, so may be shared between threads.
+    public static final class MultiPatternRabinKarp {
+        
+        private final int m;
+        private final long pPow;
+        private final String[] patterns;
+        
+        private final int mask;
+        private final long[] hashes;
+        private final int[] first; // index of the first pattern with the hash or -1 for the empty slot
+        private final int[] next; // index of the next pattern with the same hash or -1
+        
+        private MultiPatternRabinKarp(String[] patterns, int m) {
+            this.m = m;
+            this.patterns = patterns;
+            this.pPow = powMod(HASH_BASE, Math.max(m - 1, 0));
+            int capacity = Integer.highestOneBit(Math.max(patterns.length, 1)) << 2;
+            this.mask = capacity - 1;
+            this.hashes = new long[capacity];
+            this.first = new int[capacity];
+            this.next = new int[patterns.length];
+            Arrays.fill(first, -1);
+//          duplicates keep their indices, but only the first of them is reported
+            Set<String> seen = new HashSet<>();
+            boolean[] duplicate = new boolean[patterns.length];
+            for (int i = 0; i < patterns.length; i++) 
+                duplicate[i] = !seen.add(patterns[i]);
+            for (int i = patterns.length - 1; i >= 0; i--) {
+                if (duplicate[i])
+                    continue;
+                long h = hash(patterns[i], 0, m - 1);
+                int slot = slot(h);
+                hashes[slot] = h;
+                next[i] = first[slot];
+                first[slot] = i;
+            }
+        }
+        
+        private int slot(long h) {
+            int slot = (int) (h ^ (h >>> 32)) & mask;
+            while (first[slot] != -1 && hashes[slot] != h)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+        
+        public int patternLength() {return m;}
+        public int numPatterns() {return patterns.length;}
+        public String getPattern(int patternIndex) {return patterns[patternIndex];}
+        
+        public void search(CharSequence text, MatchConsumer consumer) {search(text, consumer, 0, text.length() - 1);}
+        public void search(CharSequence text, MatchConsumer consumer, int from) {search(text, consumer, from, text.length() - 1);}
+        public void search(CharSequence text, MatchConsumer consumer, int from, int to) {
+            if (m == 0 || to - from + 1 < m)
+                return;
+            long h = hash(text, from, from + m - 1);
+            for (int i = from; ; i++) {
+                for (int p = first[slot(h)]; p != -1; p = next[p]) {
+                    if (matches(text, i, patterns[p]))
+                        consumer.accept(p, i, i + m - 1);
+                }
+                if (i + m > to)
+                    return;
+                h = roll(h, text.charAt(i), text.charAt(i + m), pPow);
+            }
+        }
+        
+        private boolean matches(CharSequence text, int i, String pattern) {
+            for (int j = 0; j < m; j++) {
+                if (text.charAt(i + j) != pattern.charAt(j))
+                    return false;
+            }
+            return true;
+        }
+        
+        public static MultiPatternRabinKarp build(Iterable<String> lines) {
+            List<String> patterns = new ArrayList<>();
+            for (String line : lines) {
+                if (!patterns.isEmpty() && line.length() != patterns.get(0).length())
+                    throw new IllegalArgumentException("All patterns must have the same length " + patterns.get(0).length() + ", got: " + line);
+                patterns.add(line);
+            }
+            return new MultiPatternRabinKarp(patterns.toArray(new String[0]), patterns.isEmpty() ? 0 : patterns.get(0).length());
         }
         
     }
@@ -239,56 +1365,79 @@ public final class StringUtils {
         private final int[] fsm;
         private final Alphabet alphabet;
         
-        private SinglePatternSearchMachine(int[] fsm, Alphabet alphabet) {
+        private final CharMapping mapping;
+        
+        private SinglePatternSearchMachine(int[] fsm, Alphabet alphabet, CharMapping mapping) {
             this.fsm = fsm;
+            this.mapping = mapping;
             this.alphabet = alphabet;
             this.m = fsm.length / alphabet.size();
         }
         
-        private int state;
+//      cursors as in MultiPatternSearchMachine, a Matcher holds the matched prefix length
+        public Matcher matcher() {return new Matcher();}
         
-        public boolean isInFinalState() {return state == m;}
-        public boolean nextChar(char c) {
-            if (state == m)
-                throw new IllegalStateException("Machine in final state, call reset method first.");
-            int i = alphabet.indexOf(c);
-            if (i == -1) {
-                state = 0;
-                return false;
-            }
-            state = fsm[to2DArrayHash(state, i, m)];
-            return state == m;
-        }
+        private final Matcher cursor = new Matcher();
         
-        public int search(String text) {return search(text, 0, text.length() - 1);}
-        public int search(String text, int from) {return search(text, from, text.length() - 1);}
-        public int search(String text, int from, int to) {
-            if (state == m)
-                throw new IllegalStateException("Machine in final state, call reset method first.");
-            int n = to - from + 1;
-            if (n == 0 || n < m)
-                return -1;
-            for (int i = from; i <= to; i++) {
-                int index = alphabet.indexOf(text.charAt(i));
-                if (index == -1)
+        public boolean isInFinalState() {return cursor.isInFinalState();}
+        public boolean nextChar(char c) {return cursor.nextChar(c);}
+        public int search(String text) {return cursor.search(text);}
+        public int search(String text, int from) {return cursor.search(text, from);}
+        public int search(String text, int from, int to) {return cursor.search(text, from, to);}
+        public void reset() {cursor.reset();}
+        
+        public final class Matcher {
+            
+            private int state;
+            
+            public boolean isInFinalState() {return state == m;}
+            public boolean nextChar(char c) {
+                if (state == m)
+                    throw new IllegalStateException("Machine in final state, call reset method first.");
+                int i = alphabet.indexOf(mapping.map(c));
+                if (i == -1) {
                     state = 0;
-                else {
-                    state = fsm[to2DArrayHash(state, index, m)];
-                    if (state == m)
-                        return i - m + 1;
+                    return false;
                 }
+                state = fsm[to2DArrayHash(state, i, m)];
+                return state == m;
             }
-            return -1;
-        }
-        
-        public void reset() {
-            state = 0;
+            
+            public int search(String text) {return search(text, 0, text.length() - 1);}
+            public int search(String text, int from) {return search(text, from, text.length() - 1);}
+            public int search(String text, int from, int to) {
+                if (state == m)
+                    throw new IllegalStateException("Machine in final state, call reset method first.");
+                int n = to - from + 1;
+                if (n == 0 || n < m)
+                    return -1;
+                for (int i = from; i <= to; i++) {
+                    int index = alphabet.indexOf(mapping.map(text.charAt(i)));
+                    if (index == -1)
+                        state = 0;
+                    else {
+                        state = fsm[to2DArrayHash(state, index, m)];
+                        if (state == m)
+                            return i - m + 1;
+                    }
+                }
+                return -1;
+            }
+            
+            public void reset() {
+                state = 0;
+            }
+            
         }
         
         public Alphabet getAlphabet() {
             return alphabet;
         }
         
+        public CharMapping getMapping() {
+            return mapping;
+        }
+        
         public String getPattern() {
             StringBuilder sb = new StringBuilder();
             int m = fsm.length / alphabet.size();
@@ -307,6 +1456,11 @@ public final class StringUtils {
         
 //      Cache for effective substring search by FSM algorithm
         public static final SinglePatternSearchMachine build(String pattern) {
+            return build(pattern, CharMapping.IDENTITY);
+        }
+        
+        public static final SinglePatternSearchMachine build(String pattern, CharMapping mapping) {
+            pattern = mapping.map(pattern);
             int m = pattern.length();
             if (m == 0)
                 throw new IllegalArgumentException("pattern.length() must be >0");
@@ -323,7 +1477,7 @@ public final class StringUtils {
                         fsm[to2DArrayHash(i, c_idx, m)] = fsm[to2DArrayHash(p[i - 1], c_idx, m)];
                 }
             }
-            return new SinglePatternSearchMachine(fsm, alphabet);
+            return new SinglePatternSearchMachine(fsm, alphabet, mapping);
         }
         
     }
@@ -345,6 +1499,8 @@ public final class StringUtils {
         if (prefixFunction == null)
             prefixFunction = prefixFunction(pattern);
         int[] p = prefixFunction;
+        int r = rarestCharIndex(pattern);
+        char rare = pattern.charAt(r);
         int i = from, j = 0;
         while (i <= to && j < m) {
             if (s.charAt(i) == pattern.charAt(j)) {
@@ -353,32 +1509,213 @@ public final class StringUtils {
             } else {
                 if (j != 0)
                     j = p[j - 1];
-                else 
-                    i++;
+                else {
+//                  nothing is matched, so skip to the next window with the rarest char in place
+                    i = nextCandidate(s, rare, r, i + 1, to - m + 1);
+                    if (i == -1)
+                        return -1;
+                }
             }
         }
         return j == m ? i - m : -1;
     }
     
-    public static String normalize(String s) {
-        StringBuilder sb = new StringBuilder();
-        int i = 0;
-        while (i < s.length() && s.charAt(i) == ' ')
-            i++;
-        int j = s.length() - 1;
-        while (j >= 0 && s.charAt(j) == ' ')
-            j--;
-        if (i > j)
-            return "";
-        while (true) {
-            sb.append(s.charAt(i++));
-            if (i > j)
-                return sb.toString();
-            if (s.charAt(i) == ' ') {
-                i++;
-                while (s.charAt(i) == ' ')
+//  Cache for effective substring search by Boyer-Moore-Horspool algorithm. 
+//  Shifts are kept by the low byte of the char, which is safe for the colliding chars 
+//  since the smallest of their shifts wins.
+    public static int[] horspoolTable(String pattern) {
+        int m = pattern.length();
+        int[] shift = new int[256];
+        Arrays.fill(shift, Math.max(m, 1));
+        for (int i = 0; i < m - 1; i++) 
+            shift[pattern.charAt(i) & 0xFF] = m - 1 - i;
+        return shift;
+    }
+    
+    public static int indexOfHorspool(String s, String pattern, int[] horspoolTable) {
+        return indexOfHorspool(s, pattern, horspoolTable, 0, s.length() - 1);
+    }
+    
+    public static int indexOfHorspool(String s, String pattern, int[] horspoolTable, int from) {
+        return indexOfHorspool(s, pattern, horspoolTable, from, s.length() - 1);
+    }
+    
+    public static int indexOfHorspool(String s, String pattern, int[] horspoolTable, int from, int to) {
+        int n = to - from + 1, m = pattern.length();
+        if (n == 0 || n < m)
+            return -1;
+        if (m == 0)
+            return from;
+        if (horspoolTable == null)
+            horspoolTable = horspoolTable(pattern);
+        int[] shift = horspoolTable;
+        char last = pattern.charAt(m - 1);
+        for (int i = from; i <= to - m + 1;) {
+            char c = s.charAt(i + m - 1);
+            if (c == last && s.regionMatches(i, pattern, 0, m - 1))
+                return i;
+            i += shift[c & 0xFF];
+        }
+        return -1;
+    }
+    
+//  Cache for effective substring search by Crochemore-Perrin Two-Way algorithm: 
+//  {critical factorization position, shift, 1 if the pattern is periodic else 0}
+    public static int[] twoWayTable(String pattern) {
+        int m = pattern.length();
+        int[] suf = maxSuffix(pattern, false);
+        int[] sufTilde = maxSuffix(pattern, true);
+        int ell = suf[0] > sufTilde[0] ? suf[0] : sufTilde[0];
+        int per = suf[0] > sufTilde[0] ? suf[1] : sufTilde[1];
+        boolean periodic = ell + per + 1 <= m && pattern.regionMatches(0, pattern, per, ell + 1);
+        if (!periodic)
+            per = Math.max(ell + 1, m - ell - 1) + 1;
+        return new int[] {ell, per, periodic ? 1 : 0};
+    }
+    
+//  {start of the maximal suffix - 1, its period} by the natural (or reversed if tilde) order
+    private static int[] maxSuffix(String x, boolean tilde) {
+        int m = x.length();
+        int ms = -1, j = 0, k = 1, p = 1;
+        while (j + k < m) {
+            char a = x.charAt(j + k);
+            char b = x.charAt(ms + k);
+            if (tilde ? a > b : a < b) {
+                j += k;
+                k = 1;
+                p = j - ms;
+            } else if (a == b) {
+                if (k != p) 
+                    k++;
+                else {
+                    j += p;
+                    k = 1;
+                }
+            } else {
+                ms = j;
+                j = ms + 1;
+                k = p = 1;
+            }
+        }
+        return new int[] {ms, p};
+    }
+    
+    public static int indexOfTwoWay(String s, String pattern, int[] twoWayTable) {
+        return indexOfTwoWay(s, pattern, twoWayTable, 0, s.length() - 1);
+    }
+    
+    public static int indexOfTwoWay(String s, String pattern, int[] twoWayTable, int from) {
+        return indexOfTwoWay(s, pattern, twoWayTable, from, s.length() - 1);
+    }
+    
+    public static int indexOfTwoWay(String s, String pattern, int[] twoWayTable, int from, int to) {
+        int n = to - from + 1, m = pattern.length();
+        if (n == 0 || n < m)
+            return -1;
+        if (m == 0)
+            return from;
+        if (twoWayTable == null)
+            twoWayTable = twoWayTable(pattern);
+        int ell = twoWayTable[0], per = twoWayTable[1];
+        int last = to - m + 1;
+        if (twoWayTable[2] == 1) {
+//          memory is the length of the prefix known to match after the shift by the period
+            int memory = -1;
+            for (int j = from; j <= last;) {
+                int i = Math.max(ell, memory) + 1;
+                while (i < m && pattern.charAt(i) == s.charAt(i + j))
+                    i++;
+                if (i >= m) {
+                    i = ell;
+                    while (i > memory && pattern.charAt(i) == s.charAt(i + j))
+                        i--;
+                    if (i <= memory)
+                        return j;
+                    j += per;
+                    memory = m - per - 1;
+                } else {
+                    j += i - ell;
+                    memory = -1;
+                }
+            }
+        } else {
+            for (int j = from; j <= last;) {
+                int i = ell + 1;
+                while (i < m && pattern.charAt(i) == s.charAt(i + j))
                     i++;
-                sb.append(' ');
+                if (i >= m) {
+                    i = ell;
+                    while (i >= 0 && pattern.charAt(i) == s.charAt(i + j))
+                        i--;
+                    if (i < 0)
+                        return j;
+                    j += per;
+                } else
+                    j += i - ell;
+            }
+        }
+        return -1;
+    }
+    
+//  Trims the spaces and collapses the inner runs of them into a single one
+    public static String normalize(String s) {
+        return normalize(s, new StringBuilder(s.length())).toString();
+    }
+    
+    public static StringBuilder normalize(CharSequence s, StringBuilder dst) {
+        boolean started = false, space = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == ' ')
+                space = true;
+            else {
+                if (space && started)
+                    dst.append(' ');
+                dst.append(c);
+                started = true;
+                space = false;
+            }
+        }
+        return dst;
+    }
+    
+//  returns the number of chars written, which is at most s.length()
+    public static int normalize(CharSequence s, char[] dst, int offset) {
+        int j = offset;
+        boolean space = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == ' ')
+                space = true;
+            else {
+                if (space && j != offset)
+                    dst[j++] = ' ';
+                dst[j++] = c;
+                space = false;
+            }
+        }
+        return j - offset;
+    }
+    
+//  Throws BufferOverflowException, as put does, if the result doesn't fit the remaining chars. 
+//  The backing array is written directly only when the input fits, so nothing past the limit is touched.
+    public static void normalize(CharSequence s, CharBuffer dst) {
+        if (dst.hasArray() && s.length() <= dst.remaining()) {
+            int n = normalize(s, dst.array(), dst.arrayOffset() + dst.position());
+            dst.position(dst.position() + n);
+            return;
+        }
+        boolean started = false, space = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == ' ')
+                space = true;
+            else {
+                if (space && started)
+                    dst.put(' ');
+                dst.put(c);
+                started = true;
+                space = false;
             }
         }
     }
@@ -390,32 +1727,62 @@ public final class StringUtils {
         "s", "t", "u", "f", "h", "ts", "ch", "sh", "shch", "", "y", "", "e", "yu", "ya"
     };
     
+//  Transliterations of the Cyrillic block from 'Ё' (0x401) to 'ё' (0x451) by c - 'Ё', 
+//  null for the chars copied as is. 'Ё' and 'ё' go as 'Е' and 'е'.
+    private static final char TRANSLIT_FIRST = '\u0401', TRANSLIT_LAST = '\u0451';
+    private static final char[][] TRANSLIT_TBL = new char[TRANSLIT_LAST - TRANSLIT_FIRST + 1][];
+    static {
+        for (int i = 0; i < RU_TO_EN_TRANSLIT_TBL.length; i++) 
+            TRANSLIT_TBL[Alphabet.RUS.charBy(i) - TRANSLIT_FIRST] = RU_TO_EN_TRANSLIT_TBL[i].toCharArray();
+        TRANSLIT_TBL['Ё' - TRANSLIT_FIRST] = TRANSLIT_TBL['Е' - TRANSLIT_FIRST];
+        TRANSLIT_TBL['ё' - TRANSLIT_FIRST] = TRANSLIT_TBL['е' - TRANSLIT_FIRST];
+    }
+    
+    private static char[] translit(char c) {
+        return c >= TRANSLIT_FIRST && c <= TRANSLIT_LAST ? TRANSLIT_TBL[c - TRANSLIT_FIRST] : null;
+    }
+    
     public static String translitRU_EN(String str) {
-        StringBuilder sb = new StringBuilder();
+        return translitRU_EN(str, new StringBuilder(str.length() + (str.length() >> 2))).toString();
+    }
+    
+    public static StringBuilder translitRU_EN(CharSequence str, StringBuilder dst) {
         for (int i = 0; i < str.length(); i++) {
             char c = str.charAt(i);
-            switch (c) {
-                case 'ё':
-                    sb.append('е');
-                    break;
-                case 'Ё':
-                    sb.append('Е');
-                    break;
-                default:
-                    sb.append(c);
-                    break;
+            char[] t = translit(c);
+            if (t == null)
+                dst.append(c);
+            else
+                dst.append(t);
+        }
+        return dst;
+    }
+    
+//  returns the number of chars written, which is at most 4 * str.length()
+    public static int translitRU_EN(CharSequence str, char[] dst, int offset) {
+        int j = offset;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            char[] t = translit(c);
+            if (t == null)
+                dst[j++] = c;
+            else {
+                System.arraycopy(t, 0, dst, j, t.length);
+                j += t.length;
             }
         }
-        str = sb.toString();
-        sb.setLength(0);
+        return j - offset;
+    }
+    
+    public static void translitRU_EN(CharSequence str, CharBuffer dst) {
         for (int i = 0; i < str.length(); i++) {
-            int idx = Alphabet.RUS.indexOf(str.charAt(i));
-            if (idx != -1) 
-                sb.append(RU_TO_EN_TRANSLIT_TBL[idx]);
-            else 
-                sb.append(str.charAt(i));
+            char c = str.charAt(i);
+            char[] t = translit(c);
+            if (t == null)
+                dst.put(c);
+            else
+                dst.put(t);
         }
-        return sb.toString();
     }
     
     public static enum CharOperation {
@@ -424,70 +1791,260 @@ public final class StringUtils {
         INSERTION
     }
     
-    public static String longestCommonSubstring(String s1, String s2) {
-        if (s1.length() < s2.length()) {
-            String temp = s1;
-            s1 = s2;
-            s2 = temp;
+//  Primitive costs of the edit operations, so distance computations neither box the chars 
+//  nor the costs. substitute is called for the equal chars too.
+    public interface CharCostModel {
+        
+        CharCostModel UNIT = new CharCostModel() {
+            @Override public double insert(char c) {return 1;}
+            @Override public double remove(char c) {return 1;}
+            @Override public double substitute(char from, char to) {return from == to ? 0 : 1;}
+            @Override public double minIndelCost() {return 1;}
+        };
+        
+        double insert(char c);
+        double remove(char c);
+        double substitute(char from, char to);
+        
+//      Lower bound of the insertion and removal costs, which bounds the DP band of the 
+//      threshold distance. 0 if unknown, then the band is not bounded.
+        default double minIndelCost() {return 0;}
+        
+//      Adapter of the legacy boxed cost functions, either may be null if its operations are never asked.
+        static CharCostModel of(BiFunction<Character, CharOperation, Double> removeInsert, BiFunction<Character, Character, Double> exchange) {
+            return new CharCostModel() {
+                @Override public double insert(char c) {return removeInsert.apply(c, CharOperation.INSERTION);}
+                @Override public double remove(char c) {return removeInsert.apply(c, CharOperation.REMOVAL);}
+                @Override public double substitute(char from, char to) {return exchange.apply(from, to);}
+            };
         }
-        int max_len = 0; // max len of curr longest substring
-        int max_idx = 0; // char index of curr longest substring end in s2
-        int n = s1.length(), m = s2.length();
-        int[] lcs_prev = new int[m + 1];
-        int[] lcs_curr = new int[m + 1];
-        for (int i = 1; i <= n; i++) {
-            for (int j = 1; j <= m; j++) {
-                if (s1.charAt(i - 1) == s2.charAt(j - 1)) 
-                    lcs_curr[j] = lcs_prev[j - 1] + 1;
-                else
-                    lcs_curr[j] = 0;
-                if (lcs_curr[j] > max_len) {
-                    max_idx = j - 1;
-                    max_len = lcs_curr[j];
-                }
+        
+    }
+    
+//  Costs tabulated over the alphabet: looking up the table is cheaper than computing the costs 
+//  of the source model each time. Chars outside the alphabet are priced by the source model.
+    public static final class CharCostTable implements CharCostModel {
+        
+        private final Alphabet alphabet;
+        private final CharCostModel source;
+        
+        private final double[] insert;
+        private final double[] remove;
+        private final double[] substitute;
+        private final double minIndelCost;
+        
+        private CharCostTable(Alphabet alphabet, CharCostModel source, double[] insert, double[] remove, double[] substitute) {
+            this.alphabet = alphabet;
+            this.source = source;
+            this.insert = insert;
+            this.remove = remove;
+            this.substitute = substitute;
+            double min = source.minIndelCost();
+            for (int i = 0; i < insert.length; i++) 
+                min = Math.min(min, Math.min(insert[i], remove[i]));
+            this.minIndelCost = Math.max(min, 0);
+        }
+        
+        public Alphabet getAlphabet() {return alphabet;}
+        
+        @Override public double minIndelCost() {return minIndelCost;}
+        
+        @Override
+        public double insert(char c) {
+            int idx = alphabet.indexOf(c);
+            return idx == -1 ? source.insert(c) : insert[idx];
+        }
+        
+        @Override
+        public double remove(char c) {
+            int idx = alphabet.indexOf(c);
+            return idx == -1 ? source.remove(c) : remove[idx];
+        }
+        
+        @Override
+        public double substitute(char from, char to) {
+            int i = alphabet.indexOf(from), j = alphabet.indexOf(to);
+            return i == -1 || j == -1 ? source.substitute(from, to) : substitute[to2DArrayHash(j, i, alphabet.size())];
+        }
+        
+        public static CharCostTable build(Alphabet alphabet, CharCostModel source) {
+            int k = alphabet.size();
+            double[] insert = new double[k];
+            double[] remove = new double[k];
+            double[] substitute = new double[k * k];
+            for (int i = 0; i < k; i++) {
+                char c = alphabet.charBy(i);
+                insert[i] = source.insert(c);
+                remove[i] = source.remove(c);
+                for (int j = 0; j < k; j++) 
+                    substitute[to2DArrayHash(j, i, k)] = source.substitute(c, alphabet.charBy(j));
             }
-            int[] temp = lcs_prev;
-            lcs_prev = lcs_curr;
-            lcs_curr = temp;
+            return new CharCostTable(alphabet, source, insert, remove, substitute);
         }
-        if (max_len == 0)
-            return "";
+        
+    }
+    
+//  O(n + m) by the suffix array of the joined strings
+    public static String longestCommonSubstring(String s1, String s2) {
+        return SuffixArray.longestCommonSubstring(Arrays.asList(s1, s2));
+    }
+    
+//  longest substring common to all the strings
+    public static String longestCommonSubstring(List<String> strings) {
+        return SuffixArray.longestCommonSubstring(strings);
+    }
+    
+//  Hirschberg's algorithm: O(n * m) time, but only O(n + m) memory. s1 is split in halves, 
+//  and the split point of s2 is where the sum of the LCS lengths of the forward pass over 
+//  the first half and the backward pass over the second half is maximal.
+    public static String longestCommonSubsequence(String s1, String s2) {
         StringBuilder sb = new StringBuilder();
-        for (int i = max_idx - max_len + 1; i <= max_idx; i++) 
-            sb.append(s2.charAt(i));
+        hirschberg(s1, 0, s1.length(), s2, 0, s2.length(), sb);
         return sb.toString();
     }
     
-    public static String longestCommonSubsequence(String s1, String s2) {
-        int n = s1.length(), m = s2.length();
-        int col_num = n + 1;
-        int[] LCS = new int[(col_num) * (m + 1)];
-        for (int i = n; i >= 0; i--) {
-            for (int j = m; j >= 0; j--) {
-                if (i >= n || j >= m)
-                    LCS[to2DArrayHash(i, j, col_num)] = 0;
-                else if (s1.charAt(i) == s2.charAt(j))
-                    LCS[to2DArrayHash(i, j, col_num)] = 1 + LCS[to2DArrayHash(i + 1, j + 1, col_num)];
-                else
-                    LCS[to2DArrayHash(i, j, col_num)] = max(LCS[to2DArrayHash(i + 1, j, col_num)], LCS[to2DArrayHash(i, j + 1, col_num)]);
+    private static void hirschberg(String a, int aFrom, int aTo, String b, int bFrom, int bTo, StringBuilder sb) {
+        if (aFrom == aTo || bFrom == bTo)
+            return;
+        if (aTo - aFrom == 1) {
+            char c = a.charAt(aFrom);
+            for (int j = bFrom; j < bTo; j++) {
+                if (b.charAt(j) == c) {
+                    sb.append(c);
+                    return;
+                }
+            }
+            return;
+        }
+        int mid = (aFrom + aTo) >>> 1;
+        int len = bTo - bFrom;
+        int[] forward = lcsLengths(a, aFrom, mid, b, bFrom, bTo, false);
+        int[] backward = lcsLengths(a, mid, aTo, b, bFrom, bTo, true);
+        int split = 0, max = -1;
+        for (int j = 0; j <= len; j++) {
+            int l = forward[j] + backward[len - j];
+            if (l > max) {
+                max = l;
+                split = j;
             }
         }
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0, j = 0; i < n && j < m;) {
-            if (s1.charAt(i) == s2.charAt(j)) {
-                sb.append(s1.charAt(i));
-                i++;
-                j++;
-            } else if (LCS[to2DArrayHash(i + 1, j, col_num)] >= LCS[to2DArrayHash(i, j + 1, col_num)])
-                i++;
-            else
-                j++;
+        hirschberg(a, aFrom, mid, b, bFrom, bFrom + split, sb);
+        hirschberg(a, mid, aTo, b, bFrom + split, bTo, sb);
+    }
+    
+//  last row of the LCS lengths of a[aFrom, aTo) and the prefixes (or suffixes if reversed) of b[bFrom, bTo)
+    private static int[] lcsLengths(String a, int aFrom, int aTo, String b, int bFrom, int bTo, boolean reversed) {
+        int len = bTo - bFrom;
+        int[] row = new int[len + 1];
+        for (int i = 0; i < aTo - aFrom; i++) {
+            char c = reversed ? a.charAt(aTo - 1 - i) : a.charAt(aFrom + i);
+            int diag = 0;
+            for (int j = 1; j <= len; j++) {
+                int temp = row[j];
+                if (c == (reversed ? b.charAt(bTo - j) : b.charAt(bFrom + j - 1)))
+                    row[j] = diag + 1;
+                else
+                    row[j] = max(row[j], row[j - 1]);
+                diag = temp;
+            }
         }
-        return sb.toString();
+        return row;
     }
     
+//  Shortest edit script by the linear space O((n + m) * D) algorithm of Myers, 
+//  where D is the number of removals and insertions. Emits the same stream as diff by the LCS.
     public static void diff(String s1, String s2, BiConsumer<Character, CharOperation> c) {
-        diff(s1, s2, longestCommonSubsequence(s1, s2), c);
+        int[] a = s1.chars().toArray();
+        int[] b = s2.chars().toArray();
+        diff(a, b, (op, i, j) -> c.accept(op == CharOperation.INSERTION ? s2.charAt(j) : s1.charAt(i), op));
+    }
+    
+//  Line-level diff of the texts, lines are compared as a whole
+    public static void diffLines(String text1, String text2, BiConsumer<String, CharOperation> c) {
+        diffLines(text1.lines().collect(Collectors.toList()), text2.lines().collect(Collectors.toList()), c);
+    }
+    
+    public static void diffLines(List<String> lines1, List<String> lines2, BiConsumer<String, CharOperation> c) {
+        Map<String, Integer> ids = new HashMap<>();
+        int[] a = new int[lines1.size()];
+        int[] b = new int[lines2.size()];
+        for (int i = 0; i < a.length; i++) 
+            a[i] = ids.computeIfAbsent(lines1.get(i), line -> ids.size());
+        for (int i = 0; i < b.length; i++) 
+            b[i] = ids.computeIfAbsent(lines2.get(i), line -> ids.size());
+        diff(a, b, (op, i, j) -> c.accept(op == CharOperation.INSERTION ? lines2.get(j) : lines1.get(i), op));
+    }
+    
+//  Receives the edit operation with the indices of the elements of the sequences a and b
+//  (of a for REMOVAL, of b for INSERTION, of both for NOOP, the other is -1)
+    @FunctionalInterface
+    public interface EditConsumer {
+        void accept(CharOperation op, int aIndex, int bIndex);
+    }
+    
+    public static void diff(int[] a, int[] b, EditConsumer consumer) {
+        int max = a.length + b.length + 1;
+        int[] vf = new int[2 * max + 3];
+        int[] vb = new int[2 * max + 3];
+        diff(a, 0, a.length, b, 0, b.length, vf, vb, max + 1, consumer);
+    }
+    
+    private static void diff(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo, int[] vf, int[] vb, int offset, EditConsumer consumer) {
+        while (aFrom < aTo && bFrom < bTo && a[aFrom] == b[bFrom]) 
+            consumer.accept(CharOperation.NOOP, aFrom++, bFrom++);
+        int suffix = 0;
+        while (aTo > aFrom && bTo > bFrom && a[aTo - 1] == b[bTo - 1]) {
+            aTo--;
+            bTo--;
+            suffix++;
+        }
+        if (aFrom == aTo) {
+            for (int j = bFrom; j < bTo; j++) 
+                consumer.accept(CharOperation.INSERTION, -1, j);
+        } else if (bFrom == bTo) {
+            for (int i = aFrom; i < aTo; i++) 
+                consumer.accept(CharOperation.REMOVAL, i, -1);
+        } else {
+//          ends differ here, so D >= 2 and the middle snake strictly splits the problem
+            long snake = middleSnake(a, aFrom, aTo, b, bFrom, bTo, vf, vb, offset);
+            int x = aFrom + (int) (snake >>> 32), y = bFrom + (int) (snake >>> 32) - (int) snake;
+            diff(a, aFrom, x, b, bFrom, y, vf, vb, offset, consumer);
+            diff(a, x, aTo, b, y, bTo, vf, vb, offset, consumer);
+        }
+        for (int i = 0; i < suffix; i++) 
+            consumer.accept(CharOperation.NOOP, aTo + i, bTo + i);
+    }
+    
+//  Start of the middle snake of the shortest edit path, relative to (aFrom, bFrom), 
+//  as x in the high 32 bits and the diagonal x - y in the low 32 bits. 
+//  vf and vb keep the furthest x of the forward and the reverse paths by the diagonal.
+    private static long middleSnake(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo, int[] vf, int[] vb, int offset) {
+        int n = aTo - aFrom, m = bTo - bFrom;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        vf[offset + 1] = 0;
+        vb[offset + 1] = 0;
+        for (int d = 0, dMax = (n + m + 1) / 2; d <= dMax; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && vf[offset + k - 1] < vf[offset + k + 1]) ? vf[offset + k + 1] : vf[offset + k - 1] + 1;
+                int x0 = x;
+                while (x < n && x - k < m && a[aFrom + x] == b[bFrom + x - k])
+                    x++;
+                vf[offset + k] = x;
+                if (odd && k >= delta - (d - 1) && k <= delta + (d - 1) && x + vb[offset + delta - k] >= n)
+                    return ((long) x0 << 32) | (k & 0xFFFFFFFFL);
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && vb[offset + k - 1] < vb[offset + k + 1]) ? vb[offset + k + 1] : vb[offset + k - 1] + 1;
+                int x0 = x;
+                while (x < n && x - k < m && a[aTo - 1 - x] == b[bTo - 1 - x + k])
+                    x++;
+                vb[offset + k] = x;
+                if (!odd && delta - k >= -d && delta - k <= d && x + vf[offset + delta - k] >= n)
+                    return ((long) (n - x) << 32) | ((delta - k) & 0xFFFFFFFFL);
+            }
+        }
+        throw new IllegalStateException();
     }
     
     public static void diff(String s1, String s2, String lcs, BiConsumer<Character, CharOperation> c) {
@@ -524,12 +2081,16 @@ public final class StringUtils {
     }
     
     public static double getHammingDistance(String s1, String s2, BiFunction<Character, Character, Double> exch) {
+        return getHammingDistance(s1, s2, CharCostModel.of(null, exch));
+    }
+    
+    public static double getHammingDistance(String s1, String s2, CharCostModel costs) {
         if (s1.length() != s2.length())
             throw new IllegalArgumentException("s1.length() must be equal to s2.length()");
         double d = 0;
         for (int i = 0; i < s1.length(); i++) {
             if (s1.charAt(i) != s2.charAt(i))
-                d += exch.apply(s1.charAt(i), s2.charAt(i));
+                d += costs.substitute(s1.charAt(i), s2.charAt(i));
         }
         return d;
     }
@@ -540,19 +2101,29 @@ public final class StringUtils {
             s2 = s1;
             s1 = temp;
         }
+        return getLevensteinDistance(s1, s2, CharCostModel.of(removeInsertion, exchange));
+    }
+    
+//  Cost of the cheapest transformation of s1 into s2 (the strings are not swapped, since the costs may be asymmetric)
+    public static double getLevensteinDistance(String s1, String s2, CharCostModel costs) {
+        if (costs == CharCostModel.UNIT)
+            return getLevensteinDistance(s1, s2);
         int n = s1.length(), m = s2.length();
         double[] ld_prev = new double[m + 1];
         double[] ld_curr = new double[m + 1];
         for (int i = 1; i <= m; i++)
-            ld_prev[i] = removeInsertion.apply(s2.charAt(i - 1), CharOperation.INSERTION);
+            ld_prev[i] = ld_prev[i - 1] + costs.insert(s2.charAt(i - 1));
         for (int i = 1; i <= n; i++) {
-            ld_curr[0] = ld_prev[0] + removeInsertion.apply(s1.charAt(i - 1), CharOperation.REMOVAL);
+            char c1 = s1.charAt(i - 1);
+            double remove = costs.remove(c1);
+            ld_curr[0] = ld_prev[0] + remove;
             for (int j = 1; j <= m; j++) {
+                char c2 = s2.charAt(j - 1);
                 ld_curr[j] = Math.min(
-                    ld_prev[j] + removeInsertion.apply(s1.charAt(i - 1), CharOperation.REMOVAL),
+                    ld_prev[j] + remove,
                     Math.min(
-                        ld_curr[j - 1] + removeInsertion.apply(s2.charAt(j - 1), CharOperation.INSERTION),
-                        ld_prev[j - 1] + exchange.apply(s1.charAt(i - 1), s2.charAt(j - 1))
+                        ld_curr[j - 1] + costs.insert(c2),
+                        ld_prev[j - 1] + costs.substitute(c1, c2)
                     )
                 );
             }
@@ -563,26 +2134,250 @@ public final class StringUtils {
         return ld_prev[m];
     }
     
+    public static boolean levensteinWithin(String s1, String s2, double k, CharCostModel costs) {
+        return getLevensteinDistance(s1, s2, costs, k) <= k;
+    }
+    
+//  Distance if it doesn't exceed k, otherwise positive infinity. Only the diagonal band of 
+//  k / costs.minIndelCost() cells to each side is computed, since farther cells take more 
+//  insertions or removals (Ukkonen), so it runs in O(k * n) for the unit costs. 
+//  Stops as soon as the whole row of the band exceeds k (the costs must be non-negative).
+    public static double getLevensteinDistance(String s1, String s2, CharCostModel costs, double k) {
+        return getLevensteinDistance(s1, s2, costs, k, new double[s2.length() + 1], new double[s2.length() + 1]);
+    }
+    
+//  the same, reusing the DP rows of at least s2.length() + 1 length
+    static double getLevensteinDistance(String s1, String s2, CharCostModel costs, double k, double[] ld_prev, double[] ld_curr) {
+        int n = s1.length(), m = s2.length();
+        double minIndel = costs.minIndelCost();
+        int w = minIndel > 0 ? (int) Math.min(k / minIndel, Integer.MAX_VALUE - 1) : Integer.MAX_VALUE - 1;
+        if (k < 0 || Math.abs(n - m) > w)
+            return Double.POSITIVE_INFINITY;
+        double inf = Double.POSITIVE_INFINITY;
+        ld_prev[0] = 0;
+        for (int j = 1; j <= m; j++)
+            ld_prev[j] = j <= w ? ld_prev[j - 1] + costs.insert(s2.charAt(j - 1)) : inf;
+        for (int i = 1; i <= n; i++) {
+            char c1 = s1.charAt(i - 1);
+            double remove = costs.remove(c1);
+            int lo = Math.max(1, i - w), hi = (int) Math.min(m, (long) i + w);
+            ld_curr[lo - 1] = lo == 1 && i <= w ? ld_prev[0] + remove : inf;
+            double min = ld_curr[lo - 1];
+            for (int j = lo; j <= hi; j++) {
+                char c2 = s2.charAt(j - 1);
+                ld_curr[j] = Math.min(
+                    ld_prev[j] + remove,
+                    Math.min(
+                        ld_curr[j - 1] + costs.insert(c2),
+                        ld_prev[j - 1] + costs.substitute(c1, c2)
+                    )
+                );
+                min = Math.min(min, ld_curr[j]);
+            }
+            if (min > k)
+                return inf;
+            if (hi < m)
+                ld_curr[hi + 1] = inf;
+            double[] temp = ld_prev;
+            ld_prev = ld_curr;
+            ld_curr = temp;
+        }
+        return ld_prev[m] <= k ? ld_prev[m] : inf;
+    }
+    
+//  Unit-cost Levenshtein distance by the bit-parallel algorithm of Myers (in Hyyro's formulation): 
+//  the DP column of the shorter string is kept as vertical +1/-1 deltas packed into 64-bit words, 
+//  so it runs in O(n * ceil(m / 64)) without allocations per cell.
+    public static int getLevensteinDistance(String s1, String s2) {
+        if (s1.length() < s2.length()) {
+            String temp = s2;
+            s2 = s1;
+            s1 = temp;
+        }
+        PeqTable peq = s2.length() <= PeqTable.MAX_CACHED_LENGTH ? PEQ_CACHE.get().set(s2) : new PeqTable(s2);
+        return getLevensteinDistance(peq, s1);
+    }
+    
+//  per-thread tables reused by the calls, so a short pattern costs no allocation
+    private static final ThreadLocal<PeqTable> PEQ_CACHE = ThreadLocal.withInitial(PeqTable::new);
+    
+//  the same with the table of the pattern built once and reused for many texts
+    static int getLevensteinDistance(PeqTable peq, String text) {
+        int m = peq.length;
+        if (m == 0)
+            return text.length();
+        return m <= Long.SIZE ? myers(text, peq, m) : myersBlocks(text, peq, m);
+    }
+    
+    private static int myers(String text, PeqTable peq, int m) {
+        long pv = -1L, mv = 0L;
+        long last = 1L << (m - 1);
+        int score = m;
+        for (int i = 0; i < text.length(); i++) {
+            long eq = peq.get(text.charAt(i), 0);
+            long xv = eq | mv;
+            long xh = (((eq & pv) + pv) ^ pv) | eq;
+            long ph = mv | ~(xh | pv);
+            long mh = pv & xh;
+            if ((ph & last) != 0)
+                score++;
+            else if ((mh & last) != 0)
+                score--;
+//          the first row of the global distance grows by one in every column
+            ph = (ph << 1) | 1L;
+            mh <<= 1;
+            pv = mh | ~(xv | ph);
+            mv = ph & xv;
+        }
+        return score;
+    }
+    
+    private static int myersBlocks(String text, PeqTable peq, int m) {
+        int words = peq.words;
+        long[] pvs = new long[words];
+        long[] mvs = new long[words];
+        Arrays.fill(pvs, -1L);
+        long last = 1L << ((m - 1) & (Long.SIZE - 1));
+        int score = m;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int hin = 1;
+            for (int b = 0; b < words; b++) {
+                long pv = pvs[b], mv = mvs[b];
+                long eq = peq.get(c, b);
+                long hinIsNeg = hin < 0 ? 1L : 0L;
+                long xv = eq | mv;
+                eq |= hinIsNeg;
+                long xh = (((eq & pv) + pv) ^ pv) | eq;
+                long ph = mv | ~(xh | pv);
+                long mh = pv & xh;
+                long high = b == words - 1 ? last : Long.MIN_VALUE;
+                int hout = (ph & high) != 0 ? 1 : (mh & high) != 0 ? -1 : 0;
+                ph <<= 1;
+                mh <<= 1;
+                mh |= hinIsNeg;
+                if (hin > 0)
+                    ph |= 1L;
+                pvs[b] = mh | ~(xv | ph);
+                mvs[b] = ph & xv;
+                hin = hout;
+            }
+            score += hin;
+        }
+        return score;
+    }
+    
+//  Match bit masks of the pattern chars by 64-bit words of the pattern. 
+//  Latin-1 chars are looked up directly, other chars by the small open addressing table. 
+//  The table may be refilled by the next pattern: only the entries of the previous one are 
+//  cleared, so reusing it avoids both the allocation and the zeroing of the Latin-1 part.
+    static final class PeqTable {
+        
+        static final int MAX_CACHED_LENGTH = 16 * Long.SIZE; // 32 KB of the Latin-1 masks
+        
+        private static final char[] NO_KEYS = new char[1];
+        private static final long[] NO_MASKS = new long[0];
+        
+        int length; // of the pattern
+        int words;
+        private String pattern = "";
+        private long[] latin = NO_MASKS;
+        private char[] keys = NO_KEYS;
+        private long[] masks = NO_MASKS;
+        private int mask;
+        
+        PeqTable() {}
+        
+        PeqTable(String pattern) {
+            set(pattern);
+        }
+        
+        PeqTable set(String pattern) {
+            for (int i = 0; i < this.pattern.length(); i++) {
+                char c = this.pattern.charAt(i);
+                if (c < 256)
+                    latin[to2DArrayHash(i / Long.SIZE, c, words)] = 0L;
+            }
+            int m = pattern.length();
+            this.pattern = pattern;
+            this.length = m;
+            this.words = (m + Long.SIZE - 1) / Long.SIZE;
+            if (latin.length < 256 * words)
+                latin = new long[256 * words];
+            int nonLatin = 0;
+            for (int i = 0; i < m; i++) {
+                if (pattern.charAt(i) >= 256)
+                    nonLatin++;
+            }
+            if (nonLatin == 0) {
+                keys = NO_KEYS;
+                masks = NO_MASKS;
+                mask = 0;
+            } else {
+                int capacity = Integer.highestOneBit(nonLatin) << 2;
+                mask = capacity - 1;
+                keys = new char[capacity];
+                masks = new long[capacity * words];
+            }
+            for (int i = 0; i < m; i++) {
+                char c = pattern.charAt(i);
+                long bit = 1L << (i & (Long.SIZE - 1));
+                if (c < 256)
+                    latin[to2DArrayHash(i / Long.SIZE, c, words)] |= bit;
+                else {
+                    int slot = slot(c);
+                    keys[slot] = c;
+                    masks[to2DArrayHash(i / Long.SIZE, slot, words)] |= bit;
+                }
+            }
+            return this;
+        }
+        
+//      slot of the char c, or the empty slot where it should be (keys of the empty slots are 0, which is Latin)
+        private int slot(char c) {
+            int slot = (c * 0x9E3779B9 >>> 16) & mask;
+            while (keys[slot] != 0 && keys[slot] != c)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+        
+        long get(char c, int word) {
+            if (c < 256)
+                return latin[to2DArrayHash(word, c, words)];
+            int slot = slot(c);
+            return keys[slot] == c ? masks[to2DArrayHash(word, slot, words)] : 0L;
+        }
+        
+    }
+    
     public static double getRemoveInsertDistance(String s1, String s2, BiFunction<Character, CharOperation, Double> removeInsert) {
         if (s1.length() < s2.length()) {
             String temp = s1;
             s1 = s2;
             s2 = temp;
         }
+        return getRemoveInsertDistance(s1, s2, CharCostModel.of(removeInsert, null));
+    }
+    
+//  Cost of the cheapest transformation of s1 into s2 by removals and insertions only
+    public static double getRemoveInsertDistance(String s1, String s2, CharCostModel costs) {
         int n = s1.length(), m = s2.length();
         double[] d_prev = new double[m + 1];
         double[] d_curr = new double[m + 1];
         for (int i = 1; i <= m; i++) 
-            d_prev[i] = removeInsert.apply(s2.charAt(i - 1), CharOperation.INSERTION);
+            d_prev[i] = d_prev[i - 1] + costs.insert(s2.charAt(i - 1));
         for (int i = 1; i <= n; i++) {
-            d_curr[0] = d_prev[0] + removeInsert.apply(s1.charAt(i - 1), CharOperation.REMOVAL);
+            char c1 = s1.charAt(i - 1);
+            double remove = costs.remove(c1);
+            d_curr[0] = d_prev[0] + remove;
             for (int j = 1; j <= m; j++) {
-                if (s1.charAt(i - 1) == s2.charAt(j - 1))
+                char c2 = s2.charAt(j - 1);
+                if (c1 == c2)
                     d_curr[j] = d_prev[j - 1];
                 else {
                     d_curr[j] = Math.min(
-                        d_prev[j] + removeInsert.apply(s1.charAt(i - 1), CharOperation.REMOVAL),
-                        d_curr[j - 1] + removeInsert.apply(s2.charAt(j - 1), CharOperation.INSERTION)
+                        d_prev[j] + remove,
+                        d_curr[j - 1] + costs.insert(c2)
                     );
                 }
             }
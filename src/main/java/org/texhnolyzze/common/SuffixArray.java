@@ -0,0 +1,482 @@
+package org.texhnolyzze.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Suffix array built in O(n) by SA-IS (induced sorting, Nong-Zhang-Chan) and
+ * the LCP array of the adjacent suffixes built in O(n) by Kasai.
+ * An instance is the index of the text for the repeated substring queries. 
+ * The text and the arrays are kept in buffers, so the index saved once may be memory-mapped.
+ *
+ * @author Texhnolyze
+ */
+public final class SuffixArray {
+
+    private static final int MAGIC = 0x53414931; // "SAI1"
+    private static final int HEADER_BYTES = 2 * Integer.BYTES;
+
+    private final int n;
+    private final CharBuffer text;
+    private final IntBuffer sa;
+    private final IntBuffer lcp; // lcp.get(i) is the LCP of the suffixes sa.get(i) and sa.get(i + 1)
+
+    private SuffixArray(CharBuffer text, IntBuffer sa, IntBuffer lcp) {
+        this.n = text.limit();
+        this.text = text;
+        this.sa = sa;
+        this.lcp = lcp;
+    }
+
+    public int length() {return n;}
+    public int suffix(int rank) {return sa.get(rank);}
+
+    public int count(CharSequence pattern) {
+        return upperBound(pattern) - lowerBound(pattern);
+    }
+
+//  positions of all the occurrences of the pattern in ascending order
+    public int[] locateAll(CharSequence pattern) {
+        int lo = lowerBound(pattern), hi = upperBound(pattern);
+        int[] res = new int[hi - lo];
+        for (int i = lo; i < hi; i++)
+            res[i - lo] = sa.get(i);
+        Arrays.sort(res);
+        return res;
+    }
+
+    public String longestRepeatedSubstring() {
+        int best = 0, pos = 0;
+        for (int i = 0; i < n - 1; i++) {
+            if (lcp.get(i) > best) {
+                best = lcp.get(i);
+                pos = sa.get(i);
+            }
+        }
+        return substring(pos, pos + best);
+    }
+
+//  number of the distinct non-empty substrings: every suffix adds its prefixes not shared with the previous suffix
+    public long distinctSubstrings() {
+        long res = (long) n * (n + 1) / 2;
+        for (int i = 0; i < n - 1; i++)
+            res -= lcp.get(i);
+        return res;
+    }
+
+    public String substring(int from, int to) {
+        char[] chars = new char[to - from];
+        for (int i = from; i < to; i++)
+            chars[i - from] = text.get(i);
+        return new String(chars);
+    }
+
+//  rank of the first suffix not less than the pattern
+    private int lowerBound(CharSequence pattern) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(sa.get(mid), pattern) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+//  rank of the first suffix greater than the pattern and not starting with it
+    private int upperBound(CharSequence pattern) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(sa.get(mid), pattern) <= 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+//  compares the prefix of the suffix of the pattern length with the pattern
+    private int compare(int suffix, CharSequence pattern) {
+        for (int j = 0; j < pattern.length(); j++) {
+            if (suffix + j >= n)
+                return -1;
+            int d = text.get(suffix + j) - pattern.charAt(j);
+            if (d != 0)
+                return d;
+        }
+        return 0;
+    }
+
+    public static SuffixArray index(CharSequence text) {
+        char[] chars = new char[text.length()];
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = text.charAt(i);
+        CharBuffer buf = CharBuffer.wrap(chars);
+        int[] sa = build(buf);
+        int[] t = new int[chars.length];
+        for (int i = 0; i < t.length; i++)
+            t[i] = chars[i];
+        return new SuffixArray(buf, IntBuffer.wrap(sa), IntBuffer.wrap(lcp(t, sa)));
+    }
+
+//  Binary format (big-endian): MAGIC, n, n chars of the text, n ints of the suffix array, n - 1 ints of the LCP array
+    public void save(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeTo(channel);
+        }
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        writeTo(Channels.newChannel(out));
+    }
+
+    public void writeTo(WritableByteChannel out) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        buf.putInt(MAGIC).putInt(n);
+        for (int i = 0; i < n; i++) {
+            if (buf.remaining() < Character.BYTES)
+                flush(buf, out);
+            buf.putChar(text.get(i));
+        }
+        for (IntBuffer ints : new IntBuffer[] {sa, lcp}) {
+            for (int i = 0; i < ints.limit(); i++) {
+                if (buf.remaining() < Integer.BYTES)
+                    flush(buf, out);
+                buf.putInt(ints.get(i));
+            }
+        }
+        flush(buf, out);
+    }
+
+    private static void flush(ByteBuffer buf, WritableByteChannel out) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining())
+            out.write(buf);
+        buf.clear();
+    }
+
+//  The text and the arrays are mapped as is, nothing is copied to the heap. They are validated by one pass on load.
+    public static SuffixArray load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            int n = checkHeader(header);
+            long offset = HEADER_BYTES;
+            long textBytes = (long) n * Character.BYTES, saBytes = (long) n * Integer.BYTES, lcpBytes = (long) Math.max(n - 1, 0) * Integer.BYTES;
+            if (channel.size() < offset + textBytes + saBytes + lcpBytes)
+                throw new EOFException();
+            CharBuffer text = channel.map(FileChannel.MapMode.READ_ONLY, offset, textBytes).asCharBuffer();
+            IntBuffer sa = channel.map(FileChannel.MapMode.READ_ONLY, offset + textBytes, saBytes).asIntBuffer();
+            IntBuffer lcp = channel.map(FileChannel.MapMode.READ_ONLY, offset + textBytes + saBytes, lcpBytes).asIntBuffer();
+            checkArrays(text, sa, lcp);
+            return new SuffixArray(text, sa, lcp);
+        }
+    }
+
+    public static SuffixArray readFrom(InputStream in) throws IOException {
+        return readFrom(Channels.newChannel(in));
+    }
+
+    public static SuffixArray readFrom(ReadableByteChannel in) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(in, header);
+        int n = checkHeader(header);
+        int textBytes = Math.multiplyExact(n, Character.BYTES), saBytes = Math.multiplyExact(n, Integer.BYTES);
+        ByteBuffer body = ByteBuffer.allocate(Math.addExact(textBytes, 2 * saBytes) - (n > 0 ? Integer.BYTES : 0));
+        readFully(in, body);
+        CharBuffer text = body.position(0).limit(textBytes).slice().asCharBuffer();
+        IntBuffer sa = body.clear().position(textBytes).limit(textBytes + saBytes).slice().asIntBuffer();
+        IntBuffer lcp = body.clear().position(textBytes + saBytes).slice().asIntBuffer();
+        checkArrays(text, sa, lcp);
+        return new SuffixArray(text, sa, lcp);
+    }
+
+    private static int checkHeader(ByteBuffer header) throws IOException {
+        if (header.getInt(0) != MAGIC)
+            throw new IOException("Not a suffix array index.");
+        int n = header.getInt(Integer.BYTES);
+        if (n < 0)
+            throw corrupted();
+        return n;
+    }
+
+    private static IOException corrupted() {
+        return new IOException("Corrupted suffix array index.");
+    }
+
+//  The suffix array is a permutation of [0, n), every LCP fits both suffixes and the chars 
+//  following the common prefix are ascending, so the queries can't index out of the text. 
+//  O(n), the order of the suffixes past the LCP isn't verified.
+    private static void checkArrays(CharBuffer text, IntBuffer sa, IntBuffer lcp) throws IOException {
+        int n = text.limit();
+        boolean[] seen = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            int suffix = sa.get(i);
+            if (suffix < 0 || suffix >= n || seen[suffix])
+                throw corrupted();
+            seen[suffix] = true;
+        }
+        for (int i = 0; i < n - 1; i++) {
+            int a = sa.get(i), b = sa.get(i + 1), h = lcp.get(i);
+            if (h < 0 || h > n - Math.max(a, b))
+                throw corrupted();
+            if (b + h == n || (a + h < n && text.get(a + h) >= text.get(b + h)))
+                throw corrupted();
+        }
+    }
+
+    private static void readFully(ReadableByteChannel in, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (in.read(buf) == -1)
+                throw new EOFException();
+        }
+        buf.flip();
+    }
+
+    public static int[] build(CharSequence s) {
+        int n = s.length();
+        int max = 0;
+        for (int i = 0; i < n; i++)
+            max = Math.max(max, s.charAt(i));
+        int[] rank = ranks(s, max);
+        int[] t = new int[n];
+        for (int i = 0; i < n; i++)
+            t[i] = rank[s.charAt(i)];
+        return build(t, n == 0 ? 0 : rank[max]);
+    }
+
+//  dense ranks of the chars present in s, so the buckets of SA-IS are no bigger than the alphabet of s
+    private static int[] ranks(CharSequence s, int max) {
+        int[] rank = new int[max + 1];
+        for (int i = 0; i < s.length(); i++)
+            rank[s.charAt(i)] = 1;
+        for (int c = 0, r = 0; c <= max; c++) {
+            int present = rank[c];
+            rank[c] = r;
+            r += present;
+        }
+        return rank;
+    }
+
+//  s must consist of the values in [0, upper]
+    public static int[] build(int[] s, int upper) {
+        int n = s.length;
+        if (n == 0)
+            return new int[0];
+        if (n == 1)
+            return new int[] {0};
+        if (n == 2)
+            return s[0] < s[1] ? new int[] {0, 1} : new int[] {1, 0};
+        int[] sa = new int[n];
+//      ls[i] is true if the suffix i is S-type (less than the next suffix)
+        boolean[] ls = new boolean[n];
+        for (int i = n - 2; i >= 0; i--)
+            ls[i] = s[i] == s[i + 1] ? ls[i + 1] : s[i] < s[i + 1];
+//      starts of the L-type and S-type parts of the buckets
+        int[] sumL = new int[upper + 2];
+        int[] sumS = new int[upper + 2];
+        for (int i = 0; i < n; i++) {
+            if (!ls[i])
+                sumS[s[i]]++;
+            else
+                sumL[s[i] + 1]++;
+        }
+        for (int i = 0; i <= upper; i++) {
+            sumS[i] += sumL[i];
+            sumL[i + 1] += sumS[i];
+        }
+        int[] lmsMap = new int[n + 1];
+        Arrays.fill(lmsMap, -1);
+        int m = 0;
+        for (int i = 1; i < n; i++) {
+            if (!ls[i - 1] && ls[i])
+                lmsMap[i] = m++;
+        }
+        int[] lms = new int[m];
+        for (int i = 1, j = 0; i < n; i++) {
+            if (!ls[i - 1] && ls[i])
+                lms[j++] = i;
+        }
+        int[] buf = new int[upper + 2];
+        induce(s, sa, ls, lms, sumS, sumL, buf);
+        if (m > 0) {
+            int[] sortedLms = new int[m];
+            for (int i = 0, j = 0; i < n; i++) {
+                if (lmsMap[sa[i]] != -1)
+                    sortedLms[j++] = sa[i];
+            }
+//          names of the LMS substrings, equal substrings get equal names
+            int[] recS = new int[m];
+            int recUpper = 0;
+            recS[lmsMap[sortedLms[0]]] = 0;
+            for (int i = 1; i < m; i++) {
+                int l = sortedLms[i - 1], r = sortedLms[i];
+                int endL = lmsMap[l] + 1 < m ? lms[lmsMap[l] + 1] : n;
+                int endR = lmsMap[r] + 1 < m ? lms[lmsMap[r] + 1] : n;
+                boolean same = true;
+                if (endL - l != endR - r)
+                    same = false;
+                else {
+                    while (l < endL && s[l] == s[r]) {
+                        l++;
+                        r++;
+                    }
+                    if (l == n || s[l] != s[r])
+                        same = false;
+                }
+                if (!same)
+                    recUpper++;
+                recS[lmsMap[sortedLms[i]]] = recUpper;
+            }
+            int[] recSa = build(recS, recUpper);
+            for (int i = 0; i < m; i++)
+                sortedLms[i] = lms[recSa[i]];
+            induce(s, sa, ls, sortedLms, sumS, sumL, buf);
+        }
+        return sa;
+    }
+
+    private static void induce(int[] s, int[] sa, boolean[] ls, int[] lms, int[] sumS, int[] sumL, int[] buf) {
+        int n = s.length;
+        Arrays.fill(sa, -1);
+        System.arraycopy(sumS, 0, buf, 0, buf.length);
+        for (int d : lms) {
+            if (d != n)
+                sa[buf[s[d]]++] = d;
+        }
+        System.arraycopy(sumL, 0, buf, 0, buf.length);
+        sa[buf[s[n - 1]]++] = n - 1;
+        for (int i = 0; i < n; i++) {
+            int v = sa[i];
+            if (v >= 1 && !ls[v - 1])
+                sa[buf[s[v - 1]]++] = v - 1;
+        }
+        System.arraycopy(sumL, 0, buf, 0, buf.length);
+        for (int i = n - 1; i >= 0; i--) {
+            int v = sa[i];
+            if (v >= 1 && ls[v - 1])
+                sa[--buf[s[v - 1] + 1]] = v - 1;
+        }
+    }
+
+//  lcp[i] is the length of the longest common prefix of the suffixes sa[i] and sa[i + 1]
+    public static int[] lcp(CharSequence s, int[] sa) {
+        int[] t = new int[s.length()];
+        for (int i = 0; i < t.length; i++)
+            t[i] = s.charAt(i);
+        return lcp(t, sa);
+    }
+
+    public static int[] lcp(int[] s, int[] sa) {
+        int n = s.length;
+        if (n == 0)
+            return new int[0];
+        int[] rnk = new int[n];
+        for (int i = 0; i < n; i++)
+            rnk[sa[i]] = i;
+        int[] lcp = new int[n - 1];
+        for (int i = 0, h = 0; i < n; i++) {
+            if (h > 0)
+                h--;
+            if (rnk[i] == 0)
+                continue;
+            int j = sa[rnk[i] - 1];
+            while (j + h < n && i + h < n && s[j + h] == s[i + h])
+                h++;
+            lcp[rnk[i] - 1] = h;
+        }
+        return lcp;
+    }
+
+//  Longest substring common to all the strings in O(total length): the strings are joined
+//  with the distinct separators, and the window of the adjacent suffixes of the joint suffix
+//  array sliding over it, covering all the strings, shares the minimal LCP in it.
+    public static String longestCommonSubstring(List<String> strings) {
+        int k = strings.size();
+        if (k == 0)
+            return "";
+        if (k == 1)
+            return strings.get(0);
+        int total = k, max = 0;
+        for (String str : strings) {
+            if (str.isEmpty())
+                return "";
+            total += str.length();
+            for (int i = 0; i < str.length(); i++)
+                max = Math.max(max, str.charAt(i));
+        }
+        int[] rank = new int[max + 1];
+        for (String str : strings) {
+            for (int i = 0; i < str.length(); i++)
+                rank[str.charAt(i)] = 1;
+        }
+        int sigma = 0;
+        for (int c = 0; c <= max; c++) {
+            int present = rank[c];
+            rank[c] = sigma;
+            sigma += present;
+        }
+        int[] t = new int[total];
+        int[] owner = new int[total];
+        for (int i = 0, p = 0; i < k; i++) {
+            String str = strings.get(i);
+            for (int j = 0; j < str.length(); j++, p++) {
+                t[p] = rank[str.charAt(j)];
+                owner[p] = i;
+            }
+            t[p] = sigma + i;
+            owner[p++] = -1;
+        }
+        int[] sa = build(t, sigma + k - 1);
+        int[] lcp = lcp(t, sa);
+        int[] cnt = new int[k];
+        int[] deque = new int[total]; // indices of lcp with increasing values
+        int head = 0, tail = 0;
+        int covered = 0, best = 0, bestPos = -1;
+        for (int lo = 0, hi = 0; hi < total; hi++) {
+            int o = owner[sa[hi]];
+            if (o != -1 && cnt[o]++ == 0)
+                covered++;
+            if (hi > lo) {
+                while (tail > head && lcp[deque[tail - 1]] >= lcp[hi - 1])
+                    tail--;
+                deque[tail++] = hi - 1;
+            }
+            while (covered == k) {
+                if (hi > lo && lcp[deque[head]] > best) {
+                    best = lcp[deque[head]];
+                    bestPos = sa[hi];
+                }
+                o = owner[sa[lo++]];
+                if (o != -1 && --cnt[o] == 0)
+                    covered--;
+                while (tail > head && deque[head] < lo)
+                    head++;
+            }
+        }
+        if (bestPos == -1)
+            return "";
+        for (int i = 0, p = 0; i < k; i++) {
+            String str = strings.get(i);
+            if (bestPos < p + str.length())
+                return str.substring(bestPos - p, bestPos - p + best);
+            p += str.length() + 1;
+        }
+        throw new IllegalStateException();
+    }
+
+}
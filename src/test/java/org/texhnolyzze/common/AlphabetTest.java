@@ -0,0 +1,33 @@
+package org.texhnolyzze.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AlphabetTest {
+
+    @Test
+    void indexOf() {
+        Random random = new Random(59);
+        for (int spread : new int[] {64, 2000, 65536}) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 50; i++)
+                sb.append((char) (random.nextInt(spread)));
+            Alphabet alphabet = Alphabet.fromString(sb.toString());
+            for (int i = 0; i < alphabet.size(); i++)
+                assertThat(alphabet.indexOf(alphabet.charBy(i))).isEqualTo(i);
+            for (int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; c++)
+                assertThat(alphabet.contains((char) c)).isEqualTo(sb.indexOf(String.valueOf((char) c)) != -1);
+            assertThat(Alphabet.fromString(sb.reverse().toString())).isSameAs(alphabet);
+        }
+        Alphabet range = Alphabet.fromUTF16Range('a', 'z');
+        assertThat(range.indexOf('c')).isEqualTo(2);
+        assertThat(range.indexOf('{')).isEqualTo(-1);
+        assertThat(range).isNotEqualTo(Alphabet.fromString("abcdefghijklmnopqrstuvwxyz"));
+        assertThat(Alphabet.fromString("").size()).isZero();
+        assertThat(Alphabet.fromString("").contains('a')).isFalse();
+    }
+
+}
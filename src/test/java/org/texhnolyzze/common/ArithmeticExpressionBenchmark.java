@@ -0,0 +1,46 @@
+package org.texhnolyzze.common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ArithmeticExpression.parse of the same text, served by the parse cache, against parsing
+ * it anew every time, for a short, a mid-sized and a long expression.
+ * Run with: java -cp &lt;test classpath&gt; org.openjdk.jmh.Main ArithmeticExpressionBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArithmeticExpressionBenchmark {
+
+    @Param({
+        "x + 1",
+        "2 * x ^ 2 - 3 * x * y + 1",
+        "sin(x) ^ 2 + cos(y) ^ 2 * log(z + 1, 2) - sqrt(x * x + y * y) / (1 + ln(1 + z ^ 2)) + tan(x - y) * lg(10 * z + 1)"
+    })
+    public String expression;
+
+    @Benchmark
+    public ArithmeticExpression cached() {
+        return ArithmeticExpression.parse(expression);
+    }
+
+    @Benchmark
+    public ArithmeticExpression uncached() {
+        return ArithmeticExpression.parseUncached(expression);
+    }
+
+}
@@ -0,0 +1,225 @@
+package org.texhnolyzze.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.DoubleSupplier;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+class ArithmeticExpressionTest {
+
+    @Test
+    void compile() {
+        // the unary minus binds tighter than ^
+        ArithmeticExpression ex = ArithmeticExpression.parse("-x^2 + 3 * sin(y) - log(2, 8) / (x % 4) + sqrt(16)");
+        DoubleSupplier compiled = ex.compile();
+        for (double x = -3.5; x <= 3.5; x += 0.5) {
+            for (double y = -1; y <= 1; y += 0.25) {
+                ex.setVariableValue("x", x);
+                ex.setVariableValue("y", y);
+                double expected = Math.pow(-x, 2) + 3 * Math.sin(y) - MathUtils.log(2, 8) / (x % 4) + 4;
+                assertThat(ex.eval()).isCloseTo(expected, within(1e-9));
+                assertThat(compiled.getAsDouble()).isEqualTo(ex.eval());
+            }
+        }
+    }
+
+    @Test
+    void columnarEval() {
+        ArithmeticExpression ex = ArithmeticExpression.parse("(x + 1) * (y - x / 2) + log(2, y * y + 1) - z % 3");
+        ex.setVariableValue("z", 7);
+        int n = 100_000;
+        double[] x = new double[n], y = new double[n];
+        Random random = new Random(61);
+        for (int i = 0; i < n; i++) {
+            x[i] = random.nextDouble() * 10;
+            y[i] = random.nextDouble() * 10 - 5;
+        }
+        double[] out = new double[n];
+        double[] parallel = new double[n];
+        ex.eval(Map.of("x", x, "y", y), out, 3, n);
+        ex.eval(Map.of("x", x, "y", y), parallel, 3, n, ForkJoinPool.commonPool());
+        assertThat(out[0]).isZero();
+        assertThat(parallel).containsExactly(out);
+        for (int i = 3; i < n; i += 997) {
+            ex.setVariableValue("x", x[i]);
+            ex.setVariableValue("y", y[i]);
+            assertThat(out[i]).isEqualTo(ex.eval());
+        }
+        assertThatThrownBy(() -> ex.eval(Map.of("w", x), out, 0, n)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void sequentialColumnarEvalInPoolTask() throws Exception {
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        ArithmeticExpression.Function.newDoubleFunction("recordThread", vals -> {
+            threads.add(Thread.currentThread());
+            return vals[0];
+        }, 1);
+        try {
+            ArithmeticExpression ex = ArithmeticExpression.parse("recordThread(x) + 1");
+            int n = 200_000;
+            double[] x = new double[n], out = new double[n];
+            ForkJoinPool pool = new ForkJoinPool(4);
+            try {
+                // the sequential overload called from a worker must stay on it
+                Thread worker = pool.submit(() -> {
+                    ex.eval(Map.of("x", x), out, 0, n);
+                    return Thread.currentThread();
+                }).get();
+                assertThat(threads).containsExactly(worker);
+            } finally {
+                pool.shutdown();
+            }
+            assertThat(out).containsOnly(1);
+        } finally {
+            ArithmeticExpression.Function.removeFunction("recordThread");
+        }
+    }
+
+    private static final AtomicInteger CALLS = new AtomicInteger();
+
+    static {
+        ArithmeticExpression.Function.newDoubleFunction("countedSq", vals -> {
+            CALLS.incrementAndGet();
+            return vals[0] * vals[0];
+        }, 1, true);
+        ArithmeticExpression.Function.newDoubleFunction("impureSq", vals -> {
+            CALLS.incrementAndGet();
+            return vals[0] * vals[0];
+        }, 1);
+    }
+
+    @Test
+    void optimize() {
+        ArithmeticExpression folded = ArithmeticExpression.parse("2 * 3 + sin(0) + countedSq(3) + (x * 1 - 0) / 1 + -(-y)");
+        CALLS.set(0);
+        folded.setVariableValue("x", 5);
+        folded.setVariableValue("y", 7);
+        assertThat(folded.eval()).isEqualTo(27);
+        assertThat(folded.compile().getAsDouble()).isEqualTo(27);
+        assertThat(CALLS.get()).isZero();
+
+        // -0.0 + 0 is +0.0, so x + 0 must not become x, while x - 0, x + -0 and x * 1 may
+        String[] zeros = {"1 / (x + 0)", "1 / (0 + x)", "1 / (x - 0)", "1 / (x + -0)", "1 / (x * 1)"};
+        double[] expected = {1 / (-0.0 + 0), 1 / (0 + -0.0), 1 / (-0.0 - 0), 1 / (-0.0 + -0.0), 1 / (-0.0 * 1)};
+        for (int i = 0; i < zeros.length; i++) {
+            ArithmeticExpression ex = ArithmeticExpression.parse(zeros[i]);
+            ex.setVariableValue("x", -0.0);
+            assertThat(ex.eval()).as(zeros[i]).isEqualTo(expected[i]);
+            assertThat(ex.compile().getAsDouble()).as(zeros[i]).isEqualTo(expected[i]);
+        }
+
+        ArithmeticExpression cse = ArithmeticExpression.parse("countedSq(x + 1) * countedSq(x + 1) - countedSq(1 + x) + impureSq(x) + impureSq(x)");
+        cse.setVariableValue("x", 2);
+        CALLS.set(0);
+        assertThat(cse.eval()).isEqualTo(81 - 9 + 8);
+        assertThat(CALLS.get()).isEqualTo(1 + 1 + 2);
+        CALLS.set(0);
+        DoubleSupplier compiled = cse.compile();
+        cse.setVariableValue("x", 3);
+        assertThat(compiled.getAsDouble()).isEqualTo(256 - 16 + 18);
+        assertThat(CALLS.get()).isEqualTo(1 + 1 + 2);
+        double[] out = new double[3];
+        cse.eval(Map.of("x", new double[] {0, 1, 2}), out, 0, 3);
+        assertThat(out).containsExactly(0, 16 - 4 + 2, 81 - 9 + 8);
+    }
+
+    @Test
+    void concurrentBindings() {
+        ArithmeticExpression ex = ArithmeticExpression.parse("countedSq(a - b) + countedSq(b - a) * c - a / (c + 1)");
+        assertThat(ex.numVariables()).isEqualTo(3);
+        int a = ex.variableIndex("a"), b = ex.variableIndex("b"), c = ex.variableIndex("c");
+        assertThat(new int[] {a, b, c}).containsExactlyInAnyOrder(0, 1, 2);
+        assertThatThrownBy(() -> ex.variableIndex("d")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ex.eval(new double[2])).isInstanceOf(IllegalArgumentException.class);
+        ToDoubleFunction<double[]> compiled = ex.compileBindings();
+        AtomicBoolean ok = new AtomicBoolean(true);
+        IntStream.range(0, 20_000).parallel().forEach(i -> {
+            double[] bindings = new double[3];
+            bindings[a] = i;
+            bindings[b] = i % 7;
+            bindings[c] = i % 3;
+            double d = bindings[a] - bindings[b];
+            double expected = d * d + d * d * bindings[c] - bindings[a] / (bindings[c] + 1);
+            if (ex.eval(bindings) != expected || compiled.applyAsDouble(bindings) != expected)
+                ok.set(false);
+        });
+        assertThat(ok).isTrue();
+        // the legacy bindings are not touched
+        assertThat(ex.getVariableValue("a")).isNaN();
+    }
+
+    @Test
+    void reentrantEval() {
+        // the function evaluates the same expression, so every level needs its own scratch
+        AtomicReference<ToDoubleFunction<double[]>> self = new AtomicReference<>();
+        ArithmeticExpression.Function.newDoubleFunction("fact", vals -> vals[0] <= 0 ? 1 : self.get().applyAsDouble(new double[] {vals[0]}), 1);
+        try {
+            ArithmeticExpression ex = ArithmeticExpression.parse("n * fact(n - 1) + fact(0) - 1");
+            self.set(ex::eval);
+            assertThat(ex.eval(new double[] {5})).isEqualTo(120);
+            ToDoubleFunction<double[]> compiled = ex.compileBindings();
+            self.set(compiled);
+            assertThat(compiled.applyAsDouble(new double[] {6})).isEqualTo(720);
+            ex.setVariableValue("n", 4);
+            assertThat(ex.compile().getAsDouble()).isEqualTo(24);
+        } finally {
+            ArithmeticExpression.Function.removeFunction("fact");
+        }
+    }
+
+    @Test
+    void parse() {
+        assertThat(ArithmeticExpression.parse("2 ^ 3 ^ 2").eval()).isEqualTo(512);
+        assertThat(ArithmeticExpression.parse("-2 ^ 2").eval()).isEqualTo(4);
+        assertThat(ArithmeticExpression.parse("2 ^ -1 * 3 - -4 % 3").eval()).isEqualTo(0.5 * 3 - (-4 % 3));
+        assertThat(ArithmeticExpression.parse("log(2 * (1 + 3), 2) + sqrt(2.25)").eval()).isEqualTo(3 + 1.5);
+        assertThat(ArithmeticExpression.parse("log(-(-16), 4)").eval()).isEqualTo(2);
+        ArithmeticExpression vars = ArithmeticExpression.parse("_a1 * $b - sinx");
+        assertThat(vars.numVariables()).isEqualTo(3);
+        assertThat(vars.variableIndex("sinx")).isEqualTo(2);
+        for (String illegal : new String[] {"", "1 +", "--x", "2x", "1.", "(1", "1)", "sin", "sin(1, 2)", "log(1)", "x # y", "1\t+ 2"})
+            assertThatThrownBy(() -> ArithmeticExpression.parse(illegal)).as(illegal).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void parseCache() {
+        ArithmeticExpression a = ArithmeticExpression.parse("x * y + 1");
+        ArithmeticExpression b = ArithmeticExpression.parse("x * y + 1");
+        assertThat(a).isNotSameAs(b);
+        a.setVariableValue("x", 2);
+        a.setVariableValue("y", 3);
+        assertThat(a.eval()).isEqualTo(7);
+        assertThat(b.getVariableValue("x")).isNaN();
+        // a change of the functions changes the meaning of the cached text
+        assertThatThrownBy(() -> ArithmeticExpression.parse("scaled(x) + 1")).isInstanceOf(IllegalArgumentException.class);
+        ArithmeticExpression.Function.newDoubleFunction("scaled", vals -> vals[0] * 10, 1, true);
+        try {
+            ArithmeticExpression c = ArithmeticExpression.parse("scaled(x) + 1");
+            c.setVariableValue("x", 3);
+            assertThat(c.eval()).isEqualTo(31);
+            ArithmeticExpression.Function.removeFunction("scaled");
+            ArithmeticExpression.Function.newDoubleFunction("scaled", vals -> vals[0] * 100, 1, true);
+            ArithmeticExpression d = ArithmeticExpression.parse("scaled(x) + 1");
+            d.setVariableValue("x", 3);
+            assertThat(d.eval()).isEqualTo(301);
+        } finally {
+            ArithmeticExpression.Function.removeFunction("scaled");
+        }
+        assertThatThrownBy(() -> ArithmeticExpression.parse("scaled(x) + 1")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+}
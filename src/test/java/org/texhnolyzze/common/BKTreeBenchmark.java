@@ -0,0 +1,99 @@
+package org.texhnolyzze.common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.texhnolyzze.common.StringUtils.CharCostModel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fuzzy dictionary lookup of 100 queries within the distance k: the BK-tree against the linear
+ * scan of the dictionary, both by the thresholded distance and by the bit-parallel one.
+ * Half of the queries are typos of the dictionary words, the other half are random.
+ * An invocation of the 1M dictionary takes seconds, so every iteration of it is a single one.
+ * Run with: java -cp &lt;test classpath&gt; org.openjdk.jmh.Main BKTreeBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BKTreeBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    @Param({"1", "2"})
+    public int k;
+
+    private String[] words;
+    private String[] queries;
+    private BKTree tree;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        List<String> dictionary = new ArrayList<>();
+        for (int i = 0; i < size; i++)
+            dictionary.add(randomWord(random));
+        words = dictionary.toArray(new String[0]);
+        queries = new String[100];
+        for (int i = 0; i < queries.length; i++) {
+            if (i % 2 == 0) {
+                StringBuilder typo = new StringBuilder(words[random.nextInt(words.length)]);
+                typo.setCharAt(random.nextInt(typo.length()), (char) ('a' + random.nextInt(26)));
+                queries[i] = typo.toString();
+            } else
+                queries[i] = randomWord(random);
+        }
+        tree = BKTree.build(dictionary);
+    }
+
+    private static String randomWord(Random random) {
+        char[] word = new char[4 + random.nextInt(9)];
+        for (int i = 0; i < word.length; i++)
+            word[i] = (char) ('a' + random.nextInt(26));
+        return new String(word);
+    }
+
+    @Benchmark
+    public void bkTree(Blackhole bh) {
+        for (String query : queries)
+            tree.search(query, k, (word, distance) -> bh.consume(word));
+    }
+
+    @Benchmark
+    public void linearThreshold(Blackhole bh) {
+        for (String query : queries) {
+            for (String word : words) {
+                if (StringUtils.getLevensteinDistance(query, word, CharCostModel.UNIT, k) <= k)
+                    bh.consume(word);
+            }
+        }
+    }
+
+    @Benchmark
+    public void linearBitParallel(Blackhole bh) {
+        for (String query : queries) {
+            for (String word : words) {
+                if (StringUtils.getLevensteinDistance(query, word) <= k)
+                    bh.consume(word);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+package org.texhnolyzze.common;
+
+import org.junit.jupiter.api.Test;
+import org.texhnolyzze.common.StringUtils.CharCostModel;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BKTreeTest {
+
+    @Test
+    void search() {
+        Random random = new Random(23);
+        Set<String> words = new LinkedHashSet<>();
+        while (words.size() < 2000)
+            words.add(randomWord(random));
+        CharCostModel weighted = new CharCostModel() {
+            @Override public double insert(char c) {return c == 'a' ? 0.5 : 1;}
+            @Override public double remove(char c) {return insert(c);}
+            @Override public double substitute(char from, char to) {return from == to ? 0 : 1.5;}
+        };
+        for (CharCostModel costs : List.of(CharCostModel.UNIT, weighted)) {
+            BKTree tree = BKTree.build(words, costs);
+            assertThat(tree.size()).isEqualTo(words.size());
+            assertThat(tree.add(words.iterator().next())).isFalse();
+            for (int n = 0; n < 50; n++) {
+                String query = randomWord(random);
+                double k = random.nextInt(5) * 0.5;
+                List<String> expected = new ArrayList<>();
+                for (String word : words) {
+                    if (StringUtils.getLevensteinDistance(query, word, costs) <= k)
+                        expected.add(word);
+                }
+                assertThat(tree.search(query, k)).containsExactlyInAnyOrderElementsOf(expected);
+            }
+        }
+    }
+
+    private static String randomWord(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 2 + random.nextInt(6); i > 0; i--)
+            sb.append("abcde".charAt(random.nextInt(5)));
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,77 @@
+package org.texhnolyzze.common;
+
+import org.junit.jupiter.api.Test;
+import org.texhnolyzze.common.StringUtils.CharCostModel;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class StringDistancesTest {
+
+    private static final CharCostModel WEIGHTED = new CharCostModel() {
+        @Override public double insert(char c) {return c == 'a' ? 0.5 : 1;}
+        @Override public double remove(char c) {return 1.5;}
+        @Override public double substitute(char from, char to) {return from == to ? 0 : 2;}
+        @Override public double minIndelCost() {return 0.5;}
+    };
+
+    @Test
+    void matrix() {
+        Random random = new Random(47);
+        String[] rows = randomStrings(random, 70);
+        String[] cols = randomStrings(random, 50);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (CharCostModel costs : List.of(CharCostModel.UNIT, WEIGHTED)) {
+            double[] full = StringDistances.matrix(rows, cols, costs);
+            double[] bounded = StringDistances.matrix(rows, cols, costs, 3, pool);
+            for (int i = 0; i < rows.length; i++) {
+                for (int j = 0; j < cols.length; j++) {
+                    double expected = StringUtils.getLevensteinDistance(rows[i], cols[j], costs);
+                    assertThat(full[i * cols.length + j]).isCloseTo(expected, within(1e-9));
+                    assertThat(bounded[i * cols.length + j]).isEqualTo(expected <= 3 ? expected : Double.POSITIVE_INFINITY);
+                }
+            }
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    void nearest() {
+        Random random = new Random(53);
+        String[] rows = randomStrings(random, 40);
+        String[] cols = randomStrings(random, 200);
+        for (CharCostModel costs : List.of(CharCostModel.UNIT, WEIGHTED)) {
+            StringDistances.Neighbours neighbours = StringDistances.nearest(rows, cols, costs, 5);
+            for (int i = 0; i < rows.length; i++) {
+                String row = rows[i];
+                Integer[] expected = new Integer[cols.length];
+                for (int j = 0; j < cols.length; j++)
+                    expected[j] = j;
+                Arrays.sort(expected, Comparator.<Integer>comparingDouble(j -> StringUtils.getLevensteinDistance(row, cols[j], costs)).thenComparingInt(j -> j));
+                assertThat(neighbours.count(i)).isEqualTo(5);
+                for (int r = 0; r < 5; r++) {
+                    assertThat(neighbours.index(i, r)).isEqualTo(expected[r]);
+                    assertThat(neighbours.distance(i, r)).isEqualTo(StringUtils.getLevensteinDistance(row, cols[expected[r]], costs));
+                }
+            }
+        }
+    }
+
+    private static String[] randomStrings(Random random, int num) {
+        String[] res = new String[num];
+        for (int i = 0; i < num; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = random.nextInt(12); j > 0; j--)
+                sb.append("abc".charAt(random.nextInt(3)));
+            res[i] = sb.toString();
+        }
+        return res;
+    }
+
+}
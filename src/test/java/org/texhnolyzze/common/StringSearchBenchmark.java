@@ -0,0 +1,118 @@
+package org.texhnolyzze.common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Substring search of a pattern placed at the end of about 1 MB of English-like text,
+ * StringUtils searches against String.indexOf. kmpNoSkip is indexOfKMP without the
+ * rare-char skip, so kmp vs kmpNoSkip is the gain of the skip. The window benchmarks
+ * search the first 1000 chars of the text, where the rest of the string must not be scanned.
+ * Run with: java -cp &lt;test classpath&gt; org.openjdk.jmh.Main StringSearchBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringSearchBenchmark {
+
+    static final String[] WORDS = (
+        "the of and to in is you that it he was for on are as with his they at be this have from " +
+        "or one had by word but not what all were we when your can said there use an each which she " +
+        "do how their if will up other about out many then them these so some her would make like him " +
+        "into time has look two more write go see number no way could people my than first water been " +
+        "call who oil its now find long down day did get come made may part"
+    ).split(" ");
+
+    // a rare char (z), only the frequent ones, and non-ASCII
+    @Param({"lazy zebra", "rand hat", "ёлка"})
+    public String pattern;
+
+    private String text;
+    private int[] prefixFunction;
+
+    @Setup
+    public void setup() {
+        text = englishLike(new Random(42), 1 << 20) + pattern;
+        prefixFunction = StringUtils.prefixFunction(pattern);
+    }
+
+    static String englishLike(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length + 16);
+        while (sb.length() < length) {
+            // the earlier words are the more frequent ones
+            int i = (int) (WORDS.length * Math.pow(random.nextDouble(), 2));
+            sb.append(WORDS[i]).append(random.nextInt(12) == 0 ? ". " : " ");
+        }
+        return sb.toString();
+    }
+
+    @Benchmark
+    public int stringIndexOf() {
+        return text.indexOf(pattern);
+    }
+
+    @Benchmark
+    public int kmp() {
+        return StringUtils.indexOfKMP(text, pattern, prefixFunction);
+    }
+
+    @Benchmark
+    public int kmpNoSkip() {
+        return kmpNoSkip(text, pattern, prefixFunction, 0, text.length() - 1);
+    }
+
+    @Benchmark
+    public int rabinKarp() {
+        return StringUtils.indexOfRabinCarp(text, pattern);
+    }
+
+    // String.indexOf can't be bounded on this Java level, so the window is copied
+    @Benchmark
+    public int stringIndexOfWindow() {
+        return text.substring(0, 1000).indexOf(pattern);
+    }
+
+    @Benchmark
+    public int kmpWindow() {
+        return StringUtils.indexOfKMP(text, pattern, prefixFunction, 0, 999);
+    }
+
+    @Benchmark
+    public int rabinKarpWindow() {
+        return StringUtils.indexOfRabinCarp(text, pattern, 0, 999);
+    }
+
+    // indexOfKMP as it was before the rare-char skip
+    static int kmpNoSkip(String s, String pattern, int[] p, int from, int to) {
+        int n = to - from + 1, m = pattern.length();
+        if (n == 0 || n < m)
+            return -1;
+        int i = from, j = 0;
+        while (i <= to && j < m) {
+            if (s.charAt(i) == pattern.charAt(j)) {
+                i++;
+                j++;
+            } else if (j != 0)
+                j = p[j - 1];
+            else
+                i++;
+        }
+        return j == m ? i - m : -1;
+    }
+
+}
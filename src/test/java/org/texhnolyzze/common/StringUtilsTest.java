@@ -0,0 +1,528 @@
+package org.texhnolyzze.common;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.texhnolyzze.common.StringUtils.CharCostModel;
+import org.texhnolyzze.common.StringUtils.CharCostTable;
+import org.texhnolyzze.common.StringUtils.CharMapping;
+import org.texhnolyzze.common.StringUtils.CharOperation;
+import org.texhnolyzze.common.StringUtils.CompiledMultiPatternSearchMachine;
+import org.texhnolyzze.common.StringUtils.MatchSink;
+import org.texhnolyzze.common.StringUtils.MultiPatternRabinKarp;
+import org.texhnolyzze.common.StringUtils.MultiPatternSearchMachine;
+import org.texhnolyzze.common.StringUtils.SinglePatternSearchMachine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+class StringUtilsTest {
+
+    @Test
+    void compiledMultiPatternSearch() {
+        Random random = new Random(42);
+        for (int n = 0; n < 100; n++) {
+            List<String> patterns = randomStrings(random, 1 + random.nextInt(20), 1, 6, "abc");
+            String text = randomString(random, random.nextInt(300), "abcd");
+            CompiledMultiPatternSearchMachine machine = CompiledMultiPatternSearchMachine.build(patterns);
+            List<String> actual = new ArrayList<>();
+            machine.search(text, (match, bounds) -> actual.add(match + "@" + bounds.x() + ":" + bounds.y()));
+            assertThat(actual).containsExactlyInAnyOrderElementsOf(bruteForceSearch(patterns, text));
+        }
+    }
+
+    @Test
+    void multiPatternRabinKarp() {
+        Random random = new Random(7);
+        for (int n = 0; n < 100; n++) {
+            int m = 1 + random.nextInt(5);
+            List<String> patterns = randomStrings(random, 1 + random.nextInt(30), m, m, "abc");
+            String text = randomString(random, random.nextInt(300), "abcd");
+            MultiPatternRabinKarp machine = MultiPatternRabinKarp.build(patterns);
+            List<String> actual = new ArrayList<>();
+            machine.search(text, (patternIndex, start, end) -> actual.add(patterns.get(patternIndex) + "@" + start + ":" + end));
+            assertThat(actual).containsExactlyInAnyOrderElementsOf(bruteForceSearch(patterns, text));
+        }
+        assertThatThrownBy(() -> MultiPatternRabinKarp.build(List.of("ab", "abc"))).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void matchSink() {
+        List<String> patterns = List.of("he", "she", "his", "hers");
+        String text = "ushers and his hers";
+        MatchSink sink = new MatchSink();
+        for (int n = 0; n < 2; n++) {
+            sink.clear();
+            MultiPatternSearchMachine.build(patterns).compile().search(text, sink);
+            List<String> actual = new ArrayList<>();
+            for (int i = 0; i < sink.size(); i++)
+                actual.add(patterns.get(sink.patternIndex(i)) + "@" + sink.start(i) + ":" + sink.end(i));
+            assertThat(actual).containsExactly("she@1:3", "he@2:3", "hers@2:5", "his@11:13", "he@15:16", "hers@15:18");
+        }
+        List<String> classic = new ArrayList<>();
+        MultiPatternSearchMachine.build(patterns).search(text, (patternIndex, start, end) -> classic.add(patterns.get(patternIndex) + "@" + start + ":" + end));
+        assertThat(classic).containsExactly("she@1:3", "he@2:3", "hers@2:5", "his@11:13", "he@15:16", "hers@15:18");
+    }
+
+    @Test
+    void parallelMultiPatternSearch(@TempDir Path dir) throws IOException {
+        Random random = new Random(7);
+        List<String> patterns = randomStrings(random, 50, 1, 8, "abc");
+        String text = randomString(random, 100_000, "abcd");
+        CompiledMultiPatternSearchMachine machine = CompiledMultiPatternSearchMachine.build(patterns);
+        List<String> expected = new ArrayList<>();
+        machine.search(text, (patternIndex, start, end) -> expected.add(patternIndex + "@" + start + ":" + end));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (int chunkSize : new int[] {1, 7, 1000, 200_000}) {
+            List<String> actual = new ArrayList<>();
+            machine.searchParallel(text, (patternIndex, start, end) -> actual.add(patternIndex + "@" + start + ":" + end), 0, text.length() - 1, chunkSize, pool);
+            assertThat(actual).isEqualTo(expected);
+        }
+        Path file = dir.resolve("text");
+        Files.write(file, text.getBytes(StandardCharsets.ISO_8859_1));
+        List<String> actual = new ArrayList<>();
+        machine.searchParallel(file, StandardCharsets.ISO_8859_1, (patternIndex, start, end) -> actual.add(patternIndex + "@" + start + ":" + end), 999, pool);
+        assertThat(actual).isEqualTo(expected);
+        assertThatThrownBy(() -> machine.searchParallel(file, StandardCharsets.ISO_8859_1, (patternIndex, start, end) -> {
+            if (start > 50_000)
+                throw new IllegalStateException();
+        }, 999, pool)).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void streamingMultiPatternSearch() throws IOException {
+        Random random = new Random(11);
+        List<String> patterns = randomStrings(random, 30, 1, 6, "абв");
+        String text = randomString(random, 10_000, "абвг");
+        MultiPatternSearchMachine classic = MultiPatternSearchMachine.build(patterns);
+        CompiledMultiPatternSearchMachine compiled = CompiledMultiPatternSearchMachine.build(patterns);
+        List<String> expected = new ArrayList<>();
+        compiled.search(text, (patternIndex, start, end) -> expected.add(patterns.get(patternIndex) + "@" + start + ":" + end));
+        compiled.reset();
+        List<String> fromReader = new ArrayList<>();
+        long read = compiled.search(new StringReader(text), CharBuffer.allocate(5), (patternIndex, start, end) -> fromReader.add(patterns.get(patternIndex) + "@" + start + ":" + end));
+        assertThat(read).isEqualTo(text.length());
+        assertThat(fromReader).isEqualTo(expected);
+        compiled.reset();
+        List<String> fromChannel = new ArrayList<>();
+        compiled.search(
+            Channels.newChannel(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8))), StandardCharsets.UTF_8, ByteBuffer.allocate(7), CharBuffer.allocate(3),
+            (patternIndex, start, end) -> fromChannel.add(patterns.get(patternIndex) + "@" + start + ":" + end)
+        );
+        assertThat(fromChannel).isEqualTo(expected);
+        List<String> classicExpected = new ArrayList<>();
+        classic.search(text, (patternIndex, start, end) -> classicExpected.add(patterns.get(patternIndex) + "@" + start + ":" + end));
+        classic.reset();
+        List<String> classicFromChannel = new ArrayList<>();
+        classic.search(
+            Channels.newChannel(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8))), StandardCharsets.UTF_8,
+            (patternIndex, start, end) -> classicFromChannel.add(patterns.get(patternIndex) + "@" + start + ":" + end)
+        );
+        assertThat(classicFromChannel).isEqualTo(classicExpected);
+    }
+
+    @Test
+    void streamingMatchAcrossCalls() throws IOException {
+        List<String> patterns = List.of("hers", "she");
+        CompiledMultiPatternSearchMachine.Matcher compiled = CompiledMultiPatternSearchMachine.build(patterns).matcher();
+        MultiPatternSearchMachine.Matcher classic = MultiPatternSearchMachine.build(patterns).matcher();
+        for (int round = 0; round < 2; round++) {
+            List<String> fromCompiled = new ArrayList<>();
+            List<String> fromClassic = new ArrayList<>();
+            for (String part : new String[] {"us", "he", "rs"}) {
+                compiled.search(new StringReader(part), (patternIndex, start, end) -> fromCompiled.add(patterns.get(patternIndex) + "@" + start + ":" + end));
+                classic.search(new StringReader(part), (patternIndex, start, end) -> fromClassic.add(patterns.get(patternIndex) + "@" + start + ":" + end));
+            }
+            assertThat(fromCompiled).containsExactly("she@1:3", "hers@2:5");
+            assertThat(fromClassic).containsExactly("she@1:3", "hers@2:5");
+            compiled.reset();
+            classic.reset();
+        }
+    }
+
+    @Test
+    void streamingBufferSizes() throws IOException {
+        List<String> patterns = List.of("\uD83D\uDE00a");
+        byte[] utf8 = "a\uD83D\uDE00a".getBytes(StandardCharsets.UTF_8);
+        CompiledMultiPatternSearchMachine.Matcher matcher = CompiledMultiPatternSearchMachine.build(patterns).matcher();
+        // the smallest buffers still decode a surrogate pair
+        List<String> found = new ArrayList<>();
+        long read = matcher.search(Channels.newChannel(new ByteArrayInputStream(utf8)), StandardCharsets.UTF_8, ByteBuffer.allocate(6), CharBuffer.allocate(2),
+            (patternIndex, start, end) -> found.add(start + ":" + end));
+        assertThat(read).isEqualTo(4);
+        assertThat(found).containsExactly("1:3");
+        // the smaller ones would never make progress
+        assertThatThrownBy(() -> matcher.search(Channels.newChannel(new ByteArrayInputStream(utf8)), StandardCharsets.UTF_8, ByteBuffer.allocate(6), CharBuffer.allocate(1),
+            (patternIndex, start, end) -> {})).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> matcher.search(Channels.newChannel(new ByteArrayInputStream(utf8)), StandardCharsets.UTF_8, ByteBuffer.allocate(3), CharBuffer.allocate(2),
+            (patternIndex, start, end) -> {})).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> matcher.search(new StringReader("a"), CharBuffer.allocate(0), (patternIndex, start, end) -> {}))
+            .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> MultiPatternSearchMachine.build(patterns).matcher().search(new StringReader("a"), CharBuffer.allocate(1), (patternIndex, start, end) -> {}))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void sharedMachineMatchers() throws ExecutionException, InterruptedException {
+        Random random = new Random(3);
+        List<String> patterns = randomStrings(random, 100, 2, 6, "abc");
+        CompiledMultiPatternSearchMachine compiled = CompiledMultiPatternSearchMachine.build(patterns);
+        SinglePatternSearchMachine single = SinglePatternSearchMachine.build(patterns.get(0));
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 32; t++) {
+            String text = randomString(random, 5000, "abcd");
+            futures.add(pool.submit(() -> {
+                List<String> actual = new ArrayList<>();
+                CompiledMultiPatternSearchMachine.Matcher matcher = compiled.matcher();
+                for (int i = 0; i < text.length(); i++)
+                    matcher.nextChar(text.charAt(i), i, (patternIndex, start, end) -> actual.add(patterns.get(patternIndex) + "@" + start + ":" + end));
+                assertThat(actual).containsExactlyInAnyOrderElementsOf(bruteForceSearch(patterns, text));
+                assertThat(single.matcher().search(text)).isEqualTo(text.indexOf(patterns.get(0)));
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        pool.shutdown();
+    }
+
+    @Test
+    void compiledMachineSaveLoad(@TempDir Path dir) throws IOException {
+        Random random = new Random(5);
+        List<String> patterns = randomStrings(random, 20_000, 3, 12, "abcdefgh");
+        String text = randomString(random, 50_000, "abcdefghi");
+        CompiledMultiPatternSearchMachine machine = CompiledMultiPatternSearchMachine.build(patterns);
+        List<String> expected = new ArrayList<>();
+        machine.search(text, (patternIndex, start, end) -> expected.add(patternIndex + "@" + start + ":" + end));
+        Path file = dir.resolve("machine.bin");
+        machine.save(file);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        machine.writeTo(out);
+        assertThat(out.toByteArray()).isEqualTo(Files.readAllBytes(file));
+        for (CompiledMultiPatternSearchMachine loaded : List.of(CompiledMultiPatternSearchMachine.load(file), CompiledMultiPatternSearchMachine.readFrom(new ByteArrayInputStream(out.toByteArray())))) {
+            assertThat(loaded.numStates()).isEqualTo(machine.numStates());
+            assertThat(loaded.numPatterns()).isEqualTo(machine.numPatterns());
+            List<String> actual = new ArrayList<>();
+            loaded.matcher().search(text, (patternIndex, start, end) -> actual.add(patternIndex + "@" + start + ":" + end));
+            assertThat(actual).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    void compiledMachineCorruptFile(@TempDir Path dir) throws IOException {
+        CompiledMultiPatternSearchMachine machine = CompiledMultiPatternSearchMachine.build(List.of("he", "she", "hers"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        machine.writeTo(out);
+        byte[] bytes = out.toByteArray();
+        for (int len = 0; len < bytes.length; len++) {
+            byte[] truncated = Arrays.copyOf(bytes, len);
+            assertThatThrownBy(() -> CompiledMultiPatternSearchMachine.readFrom(new ByteArrayInputStream(truncated))).isInstanceOf(IOException.class);
+        }
+        // MAGIC, alphabet of 4 chars, no mapped chars, then the number of states and the tables
+        int k = 4, n = machine.numStates(), statesAt = 4 + 4 + 2 * k + 4;
+        int deltaAt = statesAt + 4, outputAt = deltaAt + 4 * (n * k + n), outputLinkAt = outputAt + 4 * n;
+        ByteBuffer huge = ByteBuffer.wrap(bytes.clone()).putInt(statesAt, Integer.MAX_VALUE / k);
+        ByteBuffer badTransition = ByteBuffer.wrap(bytes.clone()).putInt(deltaAt, n);
+        ByteBuffer badOutput = ByteBuffer.wrap(bytes.clone()).putInt(outputAt, 3);
+        ByteBuffer outputLoop = ByteBuffer.wrap(bytes.clone());
+        for (int s = 0; s < n; s++) {
+            if (outputLoop.getInt(outputAt + 4 * s) != -1)
+                outputLoop.putInt(outputLinkAt + 4 * s, s);
+        }
+        Path file = dir.resolve("machine.bin");
+        for (ByteBuffer corrupt : List.of(huge, badTransition, badOutput, outputLoop)) {
+            assertThatThrownBy(() -> CompiledMultiPatternSearchMachine.readFrom(new ByteArrayInputStream(corrupt.array()))).isInstanceOf(IOException.class);
+            Files.write(file, corrupt.array());
+            assertThatThrownBy(() -> CompiledMultiPatternSearchMachine.load(file)).isInstanceOf(IOException.class);
+        }
+        assertThat(CompiledMultiPatternSearchMachine.readFrom(new ByteArrayInputStream(bytes)).numStates()).isEqualTo(n);
+    }
+
+    @Test
+    void charMapping() throws IOException {
+        CharMapping mapping = CharMapping.CASE_INSENSITIVE.andThen(CharMapping.YO_TO_YE);
+        List<String> patterns = List.of("Ёлка", "TREE");
+        String text = "Новогодняя елка, новогодняя ЁЛКА; a tree or a Tree";
+        List<String> expected = List.of("0@11:14", "0@28:31", "1@36:39", "1@46:49");
+        List<String> classic = new ArrayList<>();
+        MultiPatternSearchMachine.build(patterns, mapping).search(text, (patternIndex, start, end) -> classic.add(patternIndex + "@" + start + ":" + end));
+        assertThat(classic).isEqualTo(expected);
+        CompiledMultiPatternSearchMachine compiled = CompiledMultiPatternSearchMachine.build(patterns, mapping);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        compiled.writeTo(out);
+        compiled = CompiledMultiPatternSearchMachine.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        List<String> actual = new ArrayList<>();
+        compiled.search(text, (patternIndex, start, end) -> actual.add(patternIndex + "@" + start + ":" + end));
+        assertThat(actual).isEqualTo(expected);
+        assertThat(compiled.getPattern(0)).isEqualTo("Ёлка");
+        SinglePatternSearchMachine single = SinglePatternSearchMachine.build("ёЛкА", mapping);
+        assertThat(single.search(text)).isEqualTo(11);
+        single.reset();
+        assertThat(single.search(text, 12)).isEqualTo(28);
+    }
+
+    @Test
+    void indexOf() {
+        Random random = new Random(13);
+        for (int n = 0; n < 2000; n++) {
+            String text = randomString(random, random.nextInt(200), "ab c");
+            String pattern = randomString(random, 1 + random.nextInt(5), "ab c");
+            int from = text.isEmpty() ? 0 : random.nextInt(text.length());
+            int to = from + (text.length() == from ? 0 : random.nextInt(text.length() - from)) - 1;
+            int expected = text.substring(0, to + 1).indexOf(pattern, from);
+            assertThat(StringUtils.indexOfRabinCarp(text, pattern, from, to)).isEqualTo(expected);
+            assertThat(StringUtils.indexOfKMP(text, pattern, null, from, to)).isEqualTo(expected);
+            assertThat(StringUtils.indexOfHorspool(text, pattern, null, from, to)).isEqualTo(expected);
+            assertThat(StringUtils.indexOfTwoWay(text, pattern, null, from, to)).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    void indexOfLongPeriodicPatterns() {
+        Random random = new Random(17);
+        for (int n = 0; n < 2000; n++) {
+            String period = randomString(random, 1 + random.nextInt(4), "ab");
+            String pattern = period.repeat(1 + random.nextInt(20)) + randomString(random, random.nextInt(3), "ab");
+            String text = randomString(random, random.nextInt(50), "ab") + pattern.substring(random.nextInt(pattern.length())) + pattern + randomString(random, random.nextInt(50), "ab");
+            int expected = text.indexOf(pattern);
+            assertThat(StringUtils.indexOfHorspool(text, pattern, StringUtils.horspoolTable(pattern))).isEqualTo(expected);
+            assertThat(StringUtils.indexOfTwoWay(text, pattern, StringUtils.twoWayTable(pattern))).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    void unitCostLevensteinDistance() {
+        Random random = new Random(11);
+        for (int n = 0; n < 500; n++) {
+            int maxLength = n % 5 == 0 ? 300 : 70;
+            String alphabet = n % 2 == 0 ? "ab" : "abcЖЯ\u4e2d\u0000";
+            String s1 = randomString(random, random.nextInt(maxLength), alphabet);
+            String s2 = n % 3 == 0 ? mutate(random, s1, alphabet) : randomString(random, random.nextInt(maxLength), alphabet);
+            int expected = levensteinDistance(s1, s2);
+            assertThat(StringUtils.getLevensteinDistance(s1, s2)).isEqualTo(expected);
+            assertThat(StringUtils.getLevensteinDistance(s2, s1)).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    void weightedLevensteinDistance() {
+        CharCostModel costs = new CharCostModel() {
+            @Override public double insert(char c) {return c == 'a' ? 0.5 : 2;}
+            @Override public double remove(char c) {return c == 'b' ? 0.25 : 3;}
+            @Override public double substitute(char from, char to) {return from == to ? 0 : from == 'c' ? 0.75 : 1.5;}
+        };
+        CharCostTable table = CharCostTable.build(Alphabet.fromString("abc"), costs);
+        Random random = new Random(13);
+        for (int n = 0; n < 300; n++) {
+            String s1 = randomString(random, random.nextInt(20), "abcd");
+            String s2 = randomString(random, random.nextInt(20), "abcd");
+            double expected = weightedDistance(s1, s2, costs, true);
+            assertThat(StringUtils.getLevensteinDistance(s1, s2, costs)).isCloseTo(expected, within(1e-9));
+            assertThat(StringUtils.getLevensteinDistance(s1, s2, table)).isCloseTo(expected, within(1e-9));
+            assertThat(StringUtils.getRemoveInsertDistance(s1, s2, table)).isCloseTo(weightedDistance(s1, s2, costs, false), within(1e-9));
+            assertThat(StringUtils.getLevensteinDistance(s1, s2, CharCostModel.UNIT)).isEqualTo(levensteinDistance(s1, s2));
+            String longer = s1.length() >= s2.length() ? s1 : s2, shorter = longer == s1 ? s2 : s1;
+            assertThat(StringUtils.getLevensteinDistance(s1, s2, (c, op) -> op == CharOperation.INSERTION ? costs.insert(c) : costs.remove(c), costs::substitute))
+                .isCloseTo(weightedDistance(longer, shorter, costs, true), within(1e-9));
+        }
+    }
+
+    @Test
+    void thresholdLevensteinDistance() {
+        CharCostModel costs = CharCostTable.build(Alphabet.fromString("abc"), new CharCostModel() {
+            @Override public double insert(char c) {return c == 'a' ? 0.5 : 2;}
+            @Override public double remove(char c) {return c == 'b' ? 0.25 : 3;}
+            @Override public double substitute(char from, char to) {return from == to ? 0 : 1.5;}
+            @Override public double minIndelCost() {return 0.25;}
+        });
+        Random random = new Random(19);
+        for (int n = 0; n < 1000; n++) {
+            String s1 = randomString(random, random.nextInt(25), "abc");
+            String s2 = n % 2 == 0 ? mutate(random, s1, "abc") : randomString(random, random.nextInt(25), "abc");
+            double k = random.nextInt(12) * 0.5;
+            for (CharCostModel model : List.of(costs, CharCostModel.UNIT)) {
+                double expected = weightedDistance(s1, s2, model, true);
+                double actual = StringUtils.getLevensteinDistance(s1, s2, model, k);
+                if (expected <= k)
+                    assertThat(actual).isCloseTo(expected, within(1e-9));
+                else
+                    assertThat(actual).isEqualTo(Double.POSITIVE_INFINITY);
+                assertThat(StringUtils.levensteinWithin(s1, s2, k, model)).isEqualTo(expected <= k);
+            }
+        }
+    }
+
+    private static double weightedDistance(String s1, String s2, CharCostModel costs, boolean substitutions) {
+        double[][] d = new double[s1.length() + 1][s2.length() + 1];
+        for (int i = 0; i <= s1.length(); i++) {
+            for (int j = 0; j <= s2.length(); j++) {
+                if (i == 0 && j == 0)
+                    continue;
+                double best = Double.POSITIVE_INFINITY;
+                if (i > 0)
+                    best = Math.min(best, d[i - 1][j] + costs.remove(s1.charAt(i - 1)));
+                if (j > 0)
+                    best = Math.min(best, d[i][j - 1] + costs.insert(s2.charAt(j - 1)));
+                if (i > 0 && j > 0 && (substitutions || s1.charAt(i - 1) == s2.charAt(j - 1)))
+                    best = Math.min(best, d[i - 1][j - 1] + (substitutions ? costs.substitute(s1.charAt(i - 1), s2.charAt(j - 1)) : 0));
+                d[i][j] = best;
+            }
+        }
+        return d[s1.length()][s2.length()];
+    }
+
+    @Test
+    void longestCommonSubsequenceAndDiff() {
+        Random random = new Random(29);
+        for (int n = 0; n < 500; n++) {
+            String alphabet = n % 2 == 0 ? "ab" : "abcdef";
+            String s1 = randomString(random, random.nextInt(60), alphabet);
+            String s2 = n % 3 == 0 ? mutate(random, s1, alphabet) : randomString(random, random.nextInt(60), alphabet);
+            int expected = lcsLength(s1, s2);
+            String lcs = StringUtils.longestCommonSubsequence(s1, s2);
+            assertThat(lcs).hasSize(expected);
+            assertThat(lcsLength(lcs, s1)).isEqualTo(expected);
+            assertThat(lcsLength(lcs, s2)).isEqualTo(expected);
+            StringBuilder from = new StringBuilder(), to = new StringBuilder();
+            int[] noops = new int[1];
+            StringUtils.diff(s1, s2, (c, op) -> {
+                if (op != CharOperation.INSERTION)
+                    from.append(c);
+                if (op != CharOperation.REMOVAL)
+                    to.append(c);
+                if (op == CharOperation.NOOP)
+                    noops[0]++;
+            });
+            assertThat(from.toString()).isEqualTo(s1);
+            assertThat(to.toString()).isEqualTo(s2);
+            assertThat(noops[0]).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    void diffLines() {
+        List<String> actual = new ArrayList<>();
+        StringUtils.diffLines("a\nb\nc\nd\n", "a\nc\nd\ne", (line, op) -> actual.add(op + " " + line));
+        assertThat(actual).containsExactly("NOOP a", "REMOVAL b", "NOOP c", "NOOP d", "INSERTION e");
+    }
+
+    private static int lcsLength(String s1, String s2) {
+        int[][] d = new int[s1.length() + 1][s2.length() + 1];
+        for (int i = 1; i <= s1.length(); i++) {
+            for (int j = 1; j <= s2.length(); j++)
+                d[i][j] = s1.charAt(i - 1) == s2.charAt(j - 1) ? d[i - 1][j - 1] + 1 : Math.max(d[i - 1][j], d[i][j - 1]);
+        }
+        return d[s1.length()][s2.length()];
+    }
+
+    @Test
+    void normalizeAndTranslit() {
+        assertThat(StringUtils.normalize("  a  b c   ")).isEqualTo("a b c");
+        assertThat(StringUtils.normalize("   ")).isEmpty();
+        assertThat(StringUtils.translitRU_EN("Щёлково, Ёж и ъ!")).isEqualTo("Shchelkovo, Ezh i !");
+        Random random = new Random(43);
+        char[] chars = new char[1024];
+        CharBuffer direct = ByteBuffer.allocateDirect(2048).asCharBuffer();
+        for (int n = 0; n < 200; n++) {
+            String s = randomString(random, random.nextInt(40), " абвЁёщъяAZ\u0400\u0450");
+            String normalized = s.trim().replaceAll(" +", " ");
+            assertThat(StringUtils.normalize(s)).isEqualTo(normalized);
+            assertThat(new String(chars, 3, StringUtils.normalize(s, chars, 3))).isEqualTo(normalized);
+            direct.clear();
+            StringUtils.normalize(s, direct);
+            assertThat(direct.flip().toString()).isEqualTo(normalized);
+            String translit = StringUtils.translitRU_EN(s);
+            assertThat(StringUtils.translitRU_EN(s, new StringBuilder("x")).toString()).isEqualTo("x" + translit);
+            assertThat(new String(chars, 5, StringUtils.translitRU_EN(s, chars, 5))).isEqualTo(translit);
+            direct.clear();
+            StringUtils.translitRU_EN(s, direct);
+            assertThat(direct.flip().toString()).isEqualTo(translit);
+        }
+        // a wrapped buffer whose limit is below the result, nothing past the limit may be written
+        char[] backing = "abcdefgXXX".toCharArray();
+        CharBuffer wrapped = CharBuffer.wrap(backing, 0, 3);
+        assertThatThrownBy(() -> StringUtils.normalize("abcdefg", wrapped)).isInstanceOf(BufferOverflowException.class);
+        assertThat(new String(backing, 3, 7)).isEqualTo("defgXXX");
+        // the input is longer than the limit, but the result fits
+        CharBuffer fits = CharBuffer.wrap("XXXXX".toCharArray(), 1, 3);
+        StringUtils.normalize("  x    y ", fits);
+        assertThat(fits.position()).isEqualTo(4);
+        assertThat(new String(fits.array())).isEqualTo("Xx yX");
+    }
+
+    private static String mutate(Random random, String s, String alphabet) {
+        StringBuilder sb = new StringBuilder(s);
+        for (int i = random.nextInt(5); i > 0; i--) {
+            int idx = sb.length() == 0 ? 0 : random.nextInt(sb.length());
+            switch (random.nextInt(3)) {
+                case 0 -> sb.insert(idx, alphabet.charAt(random.nextInt(alphabet.length())));
+                case 1 -> { if (sb.length() > 0) sb.deleteCharAt(idx); }
+                default -> { if (sb.length() > 0) sb.setCharAt(idx, alphabet.charAt(random.nextInt(alphabet.length()))); }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int levensteinDistance(String s1, String s2) {
+        int[][] d = new int[s1.length() + 1][s2.length() + 1];
+        for (int i = 0; i <= s1.length(); i++) {
+            for (int j = 0; j <= s2.length(); j++) {
+                if (i == 0 || j == 0)
+                    d[i][j] = i + j;
+                else
+                    d[i][j] = Math.min(Math.min(d[i - 1][j], d[i][j - 1]) + 1, d[i - 1][j - 1] + (s1.charAt(i - 1) == s2.charAt(j - 1) ? 0 : 1));
+            }
+        }
+        return d[s1.length()][s2.length()];
+    }
+
+    private static List<String> bruteForceSearch(List<String> patterns, String text) {
+        List<String> res = new ArrayList<>();
+        List<String> distinct = new ArrayList<>();
+        for (String pattern : patterns) {
+            if (!distinct.contains(pattern))
+                distinct.add(pattern);
+        }
+        for (String pattern : distinct) {
+            for (int i = text.indexOf(pattern); i != -1; i = text.indexOf(pattern, i + 1))
+                res.add(pattern + "@" + i + ":" + (i + pattern.length() - 1));
+        }
+        return res;
+    }
+
+    private static List<String> randomStrings(Random random, int num, int minLength, int maxLength, String alphabet) {
+        List<String> res = new ArrayList<>();
+        for (int i = 0; i < num; i++)
+            res.add(randomString(random, minLength + random.nextInt(maxLength - minLength + 1), alphabet));
+        return res;
+    }
+
+    private static String randomString(Random random, int length, String alphabet) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++)
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        return sb.toString();
+    }
+
+}
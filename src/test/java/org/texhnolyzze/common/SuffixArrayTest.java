@@ -0,0 +1,151 @@
+package org.texhnolyzze.common;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SuffixArrayTest {
+
+    @Test
+    void build() {
+        Random random = new Random(31);
+        for (int n = 0; n < 300; n++) {
+            String alphabet = n % 3 == 0 ? "a" : n % 3 == 1 ? "ab" : "abcЖ中";
+            String s = randomString(random, random.nextInt(200), alphabet);
+            Integer[] expected = new Integer[s.length()];
+            for (int i = 0; i < expected.length; i++)
+                expected[i] = i;
+            Arrays.sort(expected, Comparator.comparing(s::substring));
+            int[] sa = SuffixArray.build(s);
+            assertThat(sa).containsExactly(Arrays.stream(expected).mapToInt(Integer::intValue).toArray());
+            int[] lcp = SuffixArray.lcp(s, sa);
+            for (int i = 0; i + 1 < sa.length; i++) {
+                int h = 0;
+                while (sa[i] + h < s.length() && sa[i + 1] + h < s.length() && s.charAt(sa[i] + h) == s.charAt(sa[i + 1] + h))
+                    h++;
+                assertThat(lcp[i]).isEqualTo(h);
+            }
+        }
+    }
+
+    @Test
+    void longestCommonSubstring() {
+        Random random = new Random(37);
+        for (int n = 0; n < 300; n++) {
+            List<String> strings = new ArrayList<>();
+            for (int i = 1 + random.nextInt(4); i > 0; i--)
+                strings.add(randomString(random, random.nextInt(40), "abc"));
+            String lcs = SuffixArray.longestCommonSubstring(strings);
+            assertThat(strings).allMatch(str -> str.contains(lcs));
+            assertThat(lcs.length()).isEqualTo(bruteForceLength(strings));
+        }
+        assertThat(StringUtils.longestCommonSubstring("xabcdy", "zzabcdzz")).isEqualTo("abcd");
+    }
+
+    @Test
+    void index(@TempDir Path dir) throws IOException {
+        Random random = new Random(41);
+        for (int n = 0; n < 50; n++) {
+            String text = randomString(random, random.nextInt(300), n % 2 == 0 ? "ab" : "abcd");
+            SuffixArray index = SuffixArray.index(text);
+            Path file = dir.resolve("index" + n);
+            index.save(file);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            index.writeTo(out);
+            for (SuffixArray sa : List.of(index, SuffixArray.load(file), SuffixArray.readFrom(new ByteArrayInputStream(out.toByteArray())))) {
+                assertThat(sa.length()).isEqualTo(text.length());
+                for (int i = 0; i < 20; i++) {
+                    String pattern = randomString(random, 1 + random.nextInt(4), "abcd");
+                    List<Integer> expected = new ArrayList<>();
+                    for (int j = text.indexOf(pattern); j != -1; j = text.indexOf(pattern, j + 1))
+                        expected.add(j);
+                    assertThat(sa.count(pattern)).isEqualTo(expected.size());
+                    assertThat(sa.locateAll(pattern)).containsExactly(expected.stream().mapToInt(Integer::intValue).toArray());
+                }
+                Set<String> distinct = new HashSet<>();
+                int repeated = 0;
+                for (int i = 0; i < text.length(); i++) {
+                    for (int j = i + 1; j <= text.length(); j++) {
+                        if (!distinct.add(text.substring(i, j)))
+                            repeated = Math.max(repeated, j - i);
+                    }
+                }
+                assertThat(sa.distinctSubstrings()).isEqualTo(distinct.size());
+                String lrs = sa.longestRepeatedSubstring();
+                assertThat(lrs).hasSize(repeated);
+                if (repeated > 0)
+                    assertThat(text.indexOf(lrs)).isNotEqualTo(text.lastIndexOf(lrs));
+            }
+        }
+    }
+
+    @Test
+    void corruptedIndex(@TempDir Path dir) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SuffixArray.index("banana").writeTo(out);
+        byte[] valid = out.toByteArray();
+        // header 8 bytes, 6 chars, sa = 5 3 1 0 4 2 at 20, lcp = 1 3 0 0 2 at 44
+        int sa = 20, lcp = 44;
+        List<byte[]> corrupted = new ArrayList<>();
+        corrupted.add(withInt(valid, sa, 6)); // out of the text
+        corrupted.add(withInt(valid, sa, -1));
+        corrupted.add(withInt(valid, sa + 4, 5)); // twice
+        corrupted.add(withInt(withInt(valid, sa, 3), sa + 4, 5)); // out of order
+        corrupted.add(withInt(valid, lcp, 7)); // longer than the suffix
+        corrupted.add(withInt(valid, lcp + 4, 2)); // shorter than the common prefix
+        corrupted.add(withInt(valid, lcp + 4, -1));
+        for (int i = 0; i < corrupted.size(); i++) {
+            byte[] bytes = corrupted.get(i);
+            Path file = dir.resolve("corrupted" + i);
+            Files.write(file, bytes);
+            assertThatThrownBy(() -> SuffixArray.readFrom(new ByteArrayInputStream(bytes))).as("case " + i).isInstanceOf(IOException.class);
+            assertThatThrownBy(() -> SuffixArray.load(file)).as("case " + i).isInstanceOf(IOException.class);
+        }
+        assertThat(SuffixArray.readFrom(new ByteArrayInputStream(valid)).count("ana")).isEqualTo(2);
+    }
+
+    private static byte[] withInt(byte[] bytes, int offset, int value) {
+        byte[] res = bytes.clone();
+        ByteBuffer.wrap(res).putInt(offset, value);
+        return res;
+    }
+
+    private static int bruteForceLength(List<String> strings) {
+        String first = strings.get(0);
+        int best = 0;
+        for (int i = 0; i < first.length(); i++) {
+            for (int j = i + best + 1; j <= first.length(); j++) {
+                String candidate = first.substring(i, j);
+                if (strings.stream().allMatch(str -> str.contains(candidate)))
+                    best = j - i;
+                else
+                    break;
+            }
+        }
+        return best;
+    }
+
+    private static String randomString(Random random, int length, String alphabet) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++)
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        return sb.toString();
+    }
+
+}